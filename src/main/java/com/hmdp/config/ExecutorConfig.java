@@ -0,0 +1,68 @@
+package com.hmdp.config;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class ExecutorConfig {
+
+    /**
+     * 缓存重建线程池，全局共用。队列有界，队列满时直接拒绝并计数，不阻塞请求线程，
+     * 提交方需要处理RejectedExecutionException
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService cacheRebuildExecutor(MeterRegistry meterRegistry,
+                                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        Counter rejected = Counter.builder("cache.rebuild.rejected")
+                .description("队列已满被拒绝的缓存重建任务数")
+                .register(meterRegistry);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory("cache-rebuild-", true),
+                (task, pool) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("缓存重建队列已满");
+                });
+        new ExecutorServiceMetrics(executor, "cacheRebuild", Tags.empty()).bindTo(meterRegistry);
+        return executor;
+    }
+
+    /**
+     * 秒杀兜底线程池：没有预热的秒杀券走数据库下单、发送订单消息失败后归还资格。
+     * 队列有界，队列满时拒绝并计数，提交方需要处理RejectedExecutionException
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService seckillFallbackExecutor(MeterRegistry meterRegistry,
+                                                   @Value("${hmdp.seckill.fallback.threads:4}") int threads,
+                                                   @Value("${hmdp.seckill.fallback.queue-capacity:200}") int queueCapacity) {
+        Counter rejected = Counter.builder("seckill.fallback.rejected")
+                .description("队列已满被拒绝的秒杀兜底任务数")
+                .register(meterRegistry);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory("seckill-fallback-", true),
+                (task, pool) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("秒杀兜底队列已满");
+                });
+        new ExecutorServiceMetrics(executor, "seckillFallback", Tags.empty()).bindTo(meterRegistry);
+        return executor;
+    }
+}
@@ -5,7 +5,7 @@ import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,7 +18,7 @@ import static com.hmdp.utils.SystemConstants.LOGIN_TOKEN_TTL;
 /**
  * 刷新Token拦截器
  */
-public class RefreshTokenIntercepptor implements HandlerInterceptor {
+public class RefreshTokenIntercepptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate redisTemplate;
 
@@ -56,4 +56,10 @@ public class RefreshTokenIntercepptor implements HandlerInterceptor {
         // 移除用户
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求开始后当前线程会被释放，不会执行afterCompletion，需要在这里移除用户
+        UserHolder.removeUser();
+    }
 }
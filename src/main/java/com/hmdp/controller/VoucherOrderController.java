@@ -6,10 +6,12 @@ import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,8 +28,27 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    /**
+     * 秒杀下单
+     * @param voucherId 优惠券id
+     * @param requestToken 幂等请求令牌，客户端重试时携带相同的令牌
+     * @return 订单id
+     */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "Idempotency-Key", required = false) String requestToken) {
+        return voucherOrderService.seckillVoucher(voucherId, requestToken);
+    }
+
+    /**
+     * 异步秒杀下单，请求线程在等待Redis结果时被释放
+     * @param voucherId 优惠券id
+     * @param requestToken 幂等请求令牌，客户端重试时携带相同的令牌
+     * @return 订单id
+     */
+    @PostMapping("seckill/async/{id}")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId,
+                                                         @RequestHeader(value = "Idempotency-Key", required = false) String requestToken) {
+        return voucherOrderService.seckillVoucherAsync(voucherId, requestToken);
     }
 }
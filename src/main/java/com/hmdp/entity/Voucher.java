@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存分段数，超热点秒杀券可以拆分成多段库存
+     */
+    @TableField(exist = false)
+    private Integer stockSegments;
+
     /**
      * 生效时间
      */
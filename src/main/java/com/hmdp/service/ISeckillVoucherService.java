@@ -13,4 +13,15 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 预热秒杀券：把库存、秒杀时间写入Redis，清空已下单用户
+     * @param seckillVoucher 秒杀券
+     * @param segments 库存分段数
+     */
+    void preloadSeckillVoucher(SeckillVoucher seckillVoucher, Integer segments);
+
+    /**
+     * 预热即将开始的秒杀券，已预热的跳过
+     */
+    void preloadUpcomingSeckillVouchers();
 }
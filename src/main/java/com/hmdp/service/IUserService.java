@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -46,4 +49,11 @@ public interface IUserService extends IService<User> {
      * @return
      */
     Result login(LoginFormDTO loginForm);
+
+    /**
+     * 批量查询用户的昵称和头像，走缓存
+     * @param ids
+     * @return key为用户id，不存在的用户不在结果中
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
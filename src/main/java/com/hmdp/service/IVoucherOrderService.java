@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -21,6 +24,49 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 幂等的秒杀优惠卷下单，相同请求令牌的重试直接返回第一次请求的结果
+     * @param voucherId
+     * @param requestToken 请求令牌，为空时不做幂等处理
+     * @return
+     */
+    Result seckillVoucher(Long voucherId, String requestToken);
+
+    /**
+     * 非阻塞的秒杀优惠卷下单，Redis调用使用异步API，不占用Tomcat线程
+     * @param voucherId
+     * @return
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
+    /**
+     * 幂等的非阻塞秒杀优惠卷下单
+     * @param voucherId
+     * @param requestToken 请求令牌，为空时不做幂等处理
+     * @return
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, String requestToken);
+
 
     Result createVoucherOrder(Long voucherId);
+
+    /**
+     * 异步创建订单
+     * @param voucherOrder
+     * @return 订单是否已在数据库中，一人多单、库存不足时返回false
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单，一个事务内完成多行插入和按优惠券合并的库存扣减
+     * @param voucherOrders
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消未支付的订单并归还数据库库存
+     * @param orderId
+     * @return 被取消的订单，之前已经取消的订单同样返回（不再归还库存），订单不存在或者已支付返回null
+     */
+    VoucherOrder cancelVoucherOrder(Long orderId);
 }
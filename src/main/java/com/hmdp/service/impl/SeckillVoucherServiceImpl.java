@@ -1,11 +1,28 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.extension.toolkit.ChainWrappers;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.SeckillStockSegments;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +31,108 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    /**
+     * 重建已下单用户时每批查询的订单数
+     */
+    private static final int BUYER_BATCH_SIZE = 500;
+
+    /**
+     * 提前预热多少分钟内开始的秒杀券
+     */
+    @Value("${hmdp.seckill.preload.lookahead-minutes:10}")
+    private long lookaheadMinutes;
+
+    @Override
+    public void preloadSeckillVoucher(SeckillVoucher seckillVoucher, Integer segments) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        // 清空已下单用户、已回滚的取消订单
+        stringRedisTemplate.delete(Arrays.asList(SeckillStockSegments.orderKey(voucherId), SeckillStockSegments.cancelledKey(voucherId)));
+        // 保存秒杀库存，按需拆分成多段
+        seckillStockSegments.init(voucherId, seckillVoucher.getStock(), segments, true);
+        // 最后保存秒杀时间，Lua脚本以秒杀时间是否存在判断是否预热完成
+        saveWindow(seckillVoucher);
+    }
+
+    /**
+     * 启动时以及之后每分钟执行一次
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preload.interval:60000}")
+    public void preloadUpcomingSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        // 查询即将开始或者正在进行的秒杀券
+        List<SeckillVoucher> vouchers = query()
+                .le("begin_time", now.plusMinutes(lookaheadMinutes))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher seckillVoucher : vouchers) {
+            Long voucherId = seckillVoucher.getVoucherId();
+            String key = SeckillStockSegments.voucherKey(voucherId);
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForHash().hasKey(key, "end"))) {
+                // 已经预热过
+                continue;
+            }
+            // 库存只在不存在时写入，避免覆盖已经在扣减的库存
+            seckillStockSegments.init(voucherId, seckillVoucher.getStock(), seckillStockSegments.segments(voucherId), false);
+            if (!seckillVoucher.getBeginTime().isAfter(now)) {
+                // 已经开始的秒杀券可能已有订单，先从数据库重建已下单用户，再写入秒杀时间开放下单
+                restoreBuyers(voucherId);
+            }
+            saveWindow(seckillVoucher);
+            log.info("预热秒杀券{}，库存{}", voucherId, seckillVoucher.getStock());
+        }
+    }
+
+    /**
+     * 从订单表重建已下单用户集合，已取消的订单不占用一人一单的名额
+     *
+     * @param voucherId
+     */
+    private void restoreBuyers(Long voucherId) {
+        String key = SeckillStockSegments.orderKey(voucherId);
+        long lastUserId = 0;
+        while (true) {
+            List<VoucherOrder> orders = ChainWrappers.queryChain(voucherOrderMapper)
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", 4)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("limit " + BUYER_BATCH_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            List<String> userIds = orders.stream().map(order -> order.getUserId().toString()).collect(Collectors.toList());
+            stringRedisTemplate.opsForSet().add(key, userIds.toArray(new String[0]));
+            if (orders.size() < BUYER_BATCH_SIZE) {
+                return;
+            }
+            lastUserId = orders.get(orders.size() - 1).getUserId();
+        }
+    }
+
+    private void saveWindow(SeckillVoucher seckillVoucher) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(SeckillStockSegments.voucherKey(seckillVoucher.getVoucherId()), window);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -9,17 +9,30 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BinaryCacheCodec;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -32,6 +45,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -41,6 +55,91 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.cache.bloom.shop.expected-insertions:1000000}")
+    private long shopBloomExpectedInsertions;
+
+    @Value("${hmdp.cache.bloom.shop.fpp:0.01}")
+    private double shopBloomFpp;
+
+    /**
+     * 商铺缓存的编解码方式：json或binary
+     */
+    @Value("${hmdp.cache.codec.shop:json}")
+    private String shopCodec;
+
+    @Value("${hmdp.cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    /**
+     * 商铺id布隆过滤器
+     */
+    private RedisBloomFilter shopBloomFilter;
+
+    /**
+     * 重建布隆过滤器时每次查询的商铺数量
+     */
+    private static final int BLOOM_REBUILD_BATCH = 1000;
+
+    @PostConstruct
+    private void initShopBloomFilter() {
+        shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, redisMessageListenerContainer,
+                BLOOM_SHOP_KEY, shopBloomExpectedInsertions, shopBloomFpp);
+        if (shopBloomFilter.exists()) {
+            shopBloomFilter.load();
+        } else {
+            rebuildShopBloomFilter();
+        }
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        cacheClient.registerPolicy(new CachePolicy(CACHE_SHOP_KEY)
+                .setTtl(CACHE_SHOP_TTL)
+                .setLockKeyPrefix(LOCK_SHOP_KEY)
+                .setStrategy(CachePolicy.Strategy.LOGICAL_EXPIRE)
+                .setCodec("binary".equals(shopCodec) ? new BinaryCacheCodec(compressThreshold) : null));
+    }
+
+    /**
+     * 全量重建商铺id布隆过滤器，按id分页遍历，不一次性加载全表
+     *
+     * @return 商铺数量
+     */
+    public long rebuildShopBloomFilter() {
+        return shopBloomFilter.rebuild(lastId -> {
+            List<Shop> shops = query().select("id").gt("id", lastId).orderByAsc("id")
+                    .last("limit " + BLOOM_REBUILD_BATCH).list();
+            List<Long> ids = new ArrayList<>(shops.size());
+            shops.forEach(shop -> ids.add(shop.getId()));
+            return ids;
+        });
+    }
+
+    /**
+     * 定期从Redis重新加载本地镜像，弥补订阅断开期间丢失的新增消息
+     */
+    @Scheduled(initialDelay = 600000, fixedDelay = 600000)
+    public void reloadShopBloomFilter() {
+        shopBloomFilter.load();
+    }
+
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        Long id = shop.getId();
+        // 事务提交后加入布隆过滤器
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                shopBloomFilter.put(id);
+            }
+        });
+        // 返回店铺id
+        return Result.ok(id);
+    }
+
     @Override
     public Result queryById(Long id) {
         // 缓存穿透
@@ -53,7 +152,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 缓存击穿：逻辑过期
         //Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient.queryByLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //Shop shop = cacheClient.queryByLogicExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 按注册的缓存策略查询
+        Shop shop = cacheClient.query(CACHE_SHOP_KEY, id, Shop.class, this::getById);
         if (shop == null) {
             return Result.fail("商铺不存在");
         }
@@ -63,7 +165,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     /**
      * 缓存重建线程池
      */
-    private static final ExecutorService CACHE_REBUILD_ES = Executors.newFixedThreadPool(10);
+    @Resource
+    @Qualifier("cacheRebuildExecutor")
+    private ExecutorService cacheRebuildExecutor;
 
     /**
      * 缓存击穿：逻辑过期方案
@@ -92,22 +196,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         String lockKey = LOCK_SHOP_KEY + id;
         if (tryLock(lockKey)) {
             // 获取锁成功，开启独立线程重建缓存
-            CACHE_REBUILD_ES.submit(() -> {
-                try {
-                    // 注意DoubleCheck，因为其他线程可能重建了缓存
-                    String redisDataJsonDoubleCheck = stringRedisTemplate.opsForValue().get(key);
-                    RedisData redisDataDoubleCheck = JSONUtil.toBean(redisDataJsonDoubleCheck, RedisData.class);
-                    if (LocalDateTime.now().isAfter(redisDataDoubleCheck.getExpireTime())) {
-                        // DoubleCheck缓存中还是旧数据，重建缓存
-                        this.saveShop2Redis(id, 10L);
+            try {
+                cacheRebuildExecutor.execute(() -> {
+                    try {
+                        // 注意DoubleCheck，因为其他线程可能重建了缓存
+                        String redisDataJsonDoubleCheck = stringRedisTemplate.opsForValue().get(key);
+                        RedisData redisDataDoubleCheck = JSONUtil.toBean(redisDataJsonDoubleCheck, RedisData.class);
+                        if (LocalDateTime.now().isAfter(redisDataDoubleCheck.getExpireTime())) {
+                            // DoubleCheck缓存中还是旧数据，重建缓存
+                            this.saveShop2Redis(id, 10L);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        // 释放互斥锁
+                        unlock(lockKey);
                     }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放互斥锁
-                    unlock(lockKey);
-                }
-            });
+                });
+            } catch (RejectedExecutionException e) {
+                // 线程池已满，放弃本次重建
+                unlock(lockKey);
+            }
         }
         // 获取锁失败，直接返回过期商铺信息
         return shop;
@@ -232,17 +341,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
 
     /**
-     * 缓存预热
+     * 缓存预热，过期时间由CacheClient随机错开，批量预热的商铺不会同时过期
      */
     public void saveShop2Redis(Long id, Long expireSeconds) {
         // 查询商铺数据
         Shop shop = getById(id);
-        // 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 写入Redis，封装逻辑过期时间
+        cacheClient.setWithLogicExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -254,8 +359,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 更新数据库
         updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 删除缓存，同时通知所有节点删除本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         // 返回成功
         return Result.ok();
     }
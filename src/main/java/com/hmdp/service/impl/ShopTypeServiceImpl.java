@@ -1,21 +1,22 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.collection.CollectionUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOPTYPES;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOPTYPES_TTL;
 
 /**
  * <p>
@@ -29,20 +30,25 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOPTYPES;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.registerPolicy(new CachePolicy(CACHE_SHOPTYPES)
+                .setTtl(CACHE_SHOPTYPES_TTL)
+                .setStrategy(CachePolicy.Strategy.MUTEX));
+    }
 
     @Override
     public Result queryList() {
-        String shopTypesJson = stringRedisTemplate.opsForValue().get(CACHE_SHOPTYPES);
-        if (StrUtil.isNotBlank(shopTypesJson)) {
-            List<ShopType> shopTypes = JSONUtil.toList(shopTypesJson, ShopType.class);
-            return Result.ok(shopTypes);
-        }
-        List<ShopType> shopTypes = query().orderByAsc("sort").list();
-        if (CollectionUtil.isEmpty(shopTypes)) {
+        // 只有一个key，id为空字符串
+        ShopType[] shopTypes = cacheClient.query(CACHE_SHOPTYPES, "", ShopType[].class, id -> {
+            List<ShopType> list = query().orderByAsc("sort").list();
+            return list.isEmpty() ? null : list.toArray(new ShopType[0]);
+        });
+        if (shopTypes == null) {
             return Result.fail("商铺类型为空！");
         }
-        stringRedisTemplate.opsForValue().set(CACHE_SHOPTYPES, JSONUtil.toJsonStr(shopTypes));
-        return Result.ok(shopTypes);
+        return Result.ok(Arrays.asList(shopTypes));
     }
 }
@@ -11,17 +11,24 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.SystemConstants.*;
 
 /**
@@ -39,6 +46,36 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.registerPolicy(new CachePolicy(CACHE_USER_KEY).setTtl(CACHE_USER_TTL));
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        // 只缓存昵称和头像
+        return cacheClient.queryAll(CACHE_USER_KEY, ids, UserDTO.class, missIds -> listByIds(missIds).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))));
+    }
+
+    /**
+     * 更新用户后删除缓存的昵称和头像
+     *
+     * @param entity
+     * @return
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            cacheClient.delete(CACHE_USER_KEY + entity.getId());
+        }
+        return updated;
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 检验手机号
@@ -156,6 +193,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(nickName);
         // 保存用户
         save(user);
+        // 删除可能缓存的空对象
+        cacheClient.delete(CACHE_USER_KEY + user.getId());
         return user;
     }
 }
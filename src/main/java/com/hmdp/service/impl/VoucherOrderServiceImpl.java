@@ -1,5 +1,10 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.SeckillVoucher;
@@ -8,21 +13,67 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisDelayQueue;
+import com.hmdp.utils.RedisLockWatchdog;
+import com.hmdp.utils.ReentrantRedisLock;
+import com.hmdp.utils.SeckillStockGate;
+import com.hmdp.utils.SeckillStockSegments;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBucket;
+import org.redisson.api.RFuture;
+import org.redisson.api.RScript;
+import org.redisson.api.RStream;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.redisson.api.stream.StreamAddArgs;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
-import static com.hmdp.utils.RedisConstants.VOUCHER_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -32,11 +83,12 @@ import static com.hmdp.utils.RedisConstants.VOUCHER_ORDER_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
@@ -47,8 +99,684 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient1;
 
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+
+    @Resource
+    private RedisDelayQueue redisDelayQueue;
+
+    @Resource
+    private RedisLockWatchdog redisLockWatchdog;
+
+    /**
+     * 秒杀兜底线程池，异步下单遇到没有预热的秒杀券、归还资格时使用，避免阻塞Redis回调线程
+     */
+    @Resource
+    @Qualifier("seckillFallbackExecutor")
+    private ExecutorService seckillFallbackExecutor;
+
+    /**
+     * 未支付订单超时时间（分钟）
+     */
+    @Value("${hmdp.seckill.order.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+
+    /**
+     * 注入自身的代理对象，异步线程中没有AopContext，需要通过代理对象调用事务方法
+     */
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 秒杀资格判断脚本
+     */
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 秒杀脚本的内容和SHA1，只读取一次，异步下单时用EVALSHA执行
+     */
+    private static final String SECKILL_SCRIPT_TEXT = SECKILL_SCRIPT.getScriptAsString();
+
+    private static final String SECKILL_SCRIPT_SHA = SECKILL_SCRIPT.getSha1();
+
+    /**
+     * 回滚Redis库存和已下单用户的脚本：下单失败时使用
+     */
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+
+    /**
+     * 订单取消后回滚Redis的脚本，按订单ID幂等
+     */
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+
+    static {
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本节点已标记售罄，直接返回
+        if (seckillStockGate.isSoldOut(voucherId)) {
+            return Result.fail("秒杀卷库存不足！");
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 先取补充版本号再查询库存，查询之后库存被补充过时不会标记售罄
+        long epoch = seckillStockGate.epoch(voucherId);
+        int r = trySeckill(voucherId, userId);
+        if (r == 5) {
+            // 秒杀券还没有预热到Redis，走数据库校验
+            return seckillVoucherByDb(voucherId);
+        }
+        if (r != 0) {
+            return toSeckillResult(voucherId, r, epoch);
+        }
+        // 有购买资格，订单进入消息队列，由后台线程异步写入数据库
+        return Result.ok(sendOrder(voucherId, userId));
+    }
+
+    /**
+     * 取得购买资格后才生成订单ID、发送订单消息，被拒绝的请求只访问一次Redis；
+     * 失败时归还Redis库存和购买资格
+     *
+     * @return 订单ID
+     */
+    private long sendOrder(Long voucherId, Long userId) {
+        try {
+            long orderId = idGenerator.nextId(VOUCHER_ORDER_KEY);
+            // XADD stream.orders * userId voucherId id
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(SECKILL_ORDER_STREAM)
+                    .ofMap(orderMessage(voucherId, userId, orderId)));
+            return orderId;
+        } catch (RuntimeException e) {
+            releaseAdmission(voucherId, userId, true);
+            throw e;
+        }
+    }
+
+    private static Map<String, String> orderMessage(Long voucherId, Long userId, long orderId) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        return order;
+    }
+
+    /**
+     * 把没有购买资格时Lua脚本的返回值转换为下单结果
+     *
+     * @param r     脚本返回值
+     * @param epoch 执行脚本之前的库存补充版本号
+     * @return
+     */
+    private Result toSeckillResult(Long voucherId, int r, long epoch) {
+        switch (r) {
+            case 1:
+                // 库存不足，标记售罄
+                seckillStockGate.markSoldOut(voucherId, epoch);
+                return Result.fail("秒杀卷库存不足！");
+            case 2:
+                return Result.fail("用户已经购买过一次！");
+            case 3:
+                return Result.fail("秒杀未开始！");
+            case 4:
+                return Result.fail("秒杀已结束！");
+            default:
+                return Result.fail("秒杀失败！");
+        }
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        // 回调在Redisson的线程中执行，先取出当前登录用户
+        return seckillAsync(voucherId, UserHolder.getUser());
+    }
+
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, String requestToken) {
+        UserDTO user = UserHolder.getUser();
+        if (StrUtil.isBlank(requestToken)) {
+            return seckillAsync(voucherId, user);
+        }
+        RBucket<String> bucket = redissonClient1.getBucket(idempotentKey(user.getId(), voucherId, requestToken), StringCodec.INSTANCE);
+        // 第一次请求先占位：SET key processing NX EX 60
+        return bucket.trySetAsync(IDEMPOTENT_PROCESSING, SECKILL_IDEMPOTENT_TTL, TimeUnit.SECONDS)
+                .thenCompose(isFirst -> {
+                    if (!Boolean.TRUE.equals(isFirst)) {
+                        // 重试请求，返回第一次请求的结果
+                        return bucket.getAsync().thenApply(VoucherOrderServiceImpl::idempotentResult);
+                    }
+                    // 缓存结果，重试请求直接返回
+                    return seckillAsync(voucherId, user).thenCompose(result -> bucket
+                            .setAsync(JSONUtil.toJsonStr(result), SECKILL_IDEMPOTENT_TTL, TimeUnit.SECONDS)
+                            .thenApply(v -> result));
+                })
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        // 异常时删除占位，允许客户端重试
+                        bucket.deleteAsync();
+                    }
+                })
+                .toCompletableFuture();
+    }
+
+    private CompletableFuture<Result> seckillAsync(Long voucherId, UserDTO user) {
+        // 本节点已标记售罄，直接返回
+        if (seckillStockGate.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("秒杀卷库存不足！"));
+        }
+        long epoch = seckillStockGate.epoch(voucherId);
+        return trySeckillAsync(voucherId, user.getId())
+                .thenCompose(r -> {
+                    if (r == 0) {
+                        return sendOrderAsync(voucherId, user.getId()).thenApply(Result::ok);
+                    }
+                    if (r != 5) {
+                        return CompletableFuture.completedFuture(toSeckillResult(voucherId, r, epoch));
+                    }
+                    // 秒杀券还没有预热到Redis，在独立线程池中走数据库校验
+                    try {
+                        return CompletableFuture.supplyAsync(() -> {
+                            UserHolder.saveUser(user);
+                            try {
+                                return seckillVoucherByDb(voucherId);
+                            } finally {
+                                UserHolder.removeUser();
+                            }
+                        }, seckillFallbackExecutor);
+                    } catch (RejectedExecutionException e) {
+                        // 兜底线程池已满，不再排队压数据库
+                        return CompletableFuture.completedFuture(Result.fail("系统繁忙，请稍后重试！"));
+                    }
+                })
+                .toCompletableFuture();
+    }
+
+    /**
+     * 异步执行秒杀资格判断脚本：EVALSHA，Redis中没有缓存脚本（NOSCRIPT）时改用EVAL，之后的EVALSHA就能命中
+     *
+     * @return 脚本返回值
+     */
+    private CompletionStage<Integer> trySeckillAsync(Long voucherId, Long userId) {
+        RScript script = redissonClient1.getScript(StringCodec.INSTANCE);
+        List<Object> keys = new ArrayList<>(seckillKeys(voucherId));
+        String now = String.valueOf(System.currentTimeMillis());
+        RFuture<Long> future = script.evalShaAsync(RScript.Mode.READ_WRITE, SECKILL_SCRIPT_SHA,
+                RScript.ReturnType.INTEGER, keys, userId.toString(), now);
+        return future.handle((result, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (StrUtil.contains(cause.getMessage(), "NOSCRIPT")) {
+                return script.<Long>evalAsync(RScript.Mode.READ_WRITE, SECKILL_SCRIPT_TEXT,
+                        RScript.ReturnType.INTEGER, keys, userId.toString(), now);
+            }
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(stage -> stage).thenApply(result -> result == null ? 5 : result.intValue());
+    }
+
+    /**
+     * 异步生成订单ID、发送订单消息，失败时在独立线程池中归还Redis库存和购买资格
+     *
+     * @return 订单ID
+     */
+    private CompletionStage<Long> sendOrderAsync(Long voucherId, Long userId) {
+        RStream<String, String> stream = redissonClient1.getStream(SECKILL_ORDER_STREAM, StringCodec.INSTANCE);
+        return idGenerator.nextIdAsync(VOUCHER_ORDER_KEY)
+                .thenCompose(orderId -> stream.addAsync(StreamAddArgs.entries(orderMessage(voucherId, userId, orderId)))
+                        .thenApply(id -> orderId))
+                .whenComplete((orderId, e) -> {
+                    if (e != null) {
+                        try {
+                            seckillFallbackExecutor.execute(() -> releaseAdmission(voucherId, userId, true));
+                        } catch (RejectedExecutionException rejected) {
+                            // 兜底线程池已满，资格不能丢，在当前线程归还
+                            releaseAdmission(voucherId, userId, true);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * 请求处理中的占位值
+     */
+    private static final String IDEMPOTENT_PROCESSING = "processing";
+
+    @Override
+    public Result seckillVoucher(Long voucherId, String requestToken) {
+        if (StrUtil.isBlank(requestToken)) {
+            return seckillVoucher(voucherId);
+        }
+        String key = idempotentKey(UserHolder.getUser().getId(), voucherId, requestToken);
+        // 第一次请求先占位：SET key processing NX EX 60
+        Boolean isFirst = stringRedisTemplate.opsForValue()
+                .setIfAbsent(key, IDEMPOTENT_PROCESSING, SECKILL_IDEMPOTENT_TTL, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(isFirst)) {
+            // 重试请求，返回第一次请求的结果
+            return idempotentResult(stringRedisTemplate.opsForValue().get(key));
+        }
+        Result result;
+        try {
+            result = seckillVoucher(voucherId);
+        } catch (RuntimeException e) {
+            // 异常时删除占位，允许客户端重试
+            stringRedisTemplate.delete(key);
+            throw e;
+        }
+        // 缓存结果，重试请求直接返回
+        stringRedisTemplate.opsForValue()
+                .set(key, JSONUtil.toJsonStr(result), SECKILL_IDEMPOTENT_TTL, TimeUnit.SECONDS);
+        return result;
+    }
+
+    /**
+     * 幂等key，同一个请求令牌用于不同的优惠券时互不影响
+     */
+    private static String idempotentKey(Long userId, Long voucherId, String requestToken) {
+        return SECKILL_IDEMPOTENT_KEY + userId + ":" + voucherId + ":" + requestToken;
+    }
+
+    /**
+     * 重试请求的结果：第一次请求还在处理中时提示稍后重试
+     */
+    private static Result idempotentResult(String cached) {
+        if (cached == null || IDEMPOTENT_PROCESSING.equals(cached)) {
+            return Result.fail("请求处理中，请勿重复提交！");
+        }
+        return JSONUtil.toBean(cached, Result.class);
+    }
+
+    /**
+     * 执行Lua脚本，在Redis中一次性判断秒杀时间、库存和一人一单，扣减Redis库存并记录下单用户
+     *
+     * @return 脚本返回值
+     */
+    private int trySeckill(Long voucherId, Long userId) {
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                seckillKeys(voucherId),
+                userId.toString(), String.valueOf(System.currentTimeMillis()));
+        return result == null ? 5 : result.intValue();
+    }
+
+    /**
+     * 秒杀脚本的key：已下单用户、秒杀时间，然后是从随机分段开始排列的库存分段
+     *
+     * @param voucherId
+     * @return
+     */
+    private List<String> seckillKeys(Long voucherId) {
+        List<String> stockKeys = seckillStockSegments.shuffledStockKeys(voucherId);
+        List<String> keys = new ArrayList<>(2 + stockKeys.size());
+        keys.add(SeckillStockSegments.orderKey(voucherId));
+        keys.add(SeckillStockSegments.voucherKey(voucherId));
+        keys.addAll(stockKeys);
+        return keys;
+    }
+
+    /**
+     * 订单消费者数量
+     */
+    private static final int SECKILL_ORDER_CONSUMERS = 2;
+
+    /**
+     * 每批写入数据库的最大订单数量
+     */
+    private static final int SECKILL_ORDER_BATCH = 100;
+
+    /**
+     * 凑批的最长等待时间（毫秒），不满一批时到时间也会写入
+     */
+    private static final long SECKILL_ORDER_BATCH_WAIT = 50L;
+
+    /**
+     * 订单消息的最大投递次数，超过后转入死信队列
+     */
+    private static final long SECKILL_ORDER_MAX_DELIVERIES = 10L;
+
+    /**
+     * pending-list处理失败后的重试间隔（毫秒），每次失败翻倍，最多SECKILL_ORDER_MAX_BACKOFF
+     */
+    private static final long SECKILL_ORDER_RETRY_BACKOFF = 20L;
+
+    private static final long SECKILL_ORDER_MAX_BACKOFF = 5000L;
+
+    /**
+     * 停止时等待正在处理的订单写完的最长时间（秒），超过后中断
+     */
+    private static final long SECKILL_ORDER_SHUTDOWN_TIMEOUT = 10L;
+
+    /**
+     * 异步下单线程池，随Bean创建和销毁
+     */
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        // 创建消费者组（队列不存在时一并创建）
+        createOrderGroupIfAbsent();
+        seckillOrderExecutor = Executors.newFixedThreadPool(SECKILL_ORDER_CONSUMERS,
+                new NamedThreadFactory("seckill-order-", false));
+        // 消费者名称在重启前后保持一致，重启后才能处理自己的pending-list
+        String host = NetUtil.getLocalHostName();
+        for (int i = 0; i < SECKILL_ORDER_CONSUMERS; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(host + "-" + i));
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (seckillOrderExecutor == null) {
+            return;
+        }
+        // 不中断正在写入数据库的批次，消费者在当前读取（最多阻塞2秒）和处理结束后退出
+        seckillOrderExecutor.shutdown();
+        try {
+            if (!seckillOrderExecutor.awaitTermination(SECKILL_ORDER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                // 没有确认的消息留在pending-list中，重启后处理
+                log.warn("订单消费者没有在{}秒内停止，强制中断", SECKILL_ORDER_SHUTDOWN_TIMEOUT);
+                seckillOrderExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            seckillOrderExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream.orders g1 0 MKSTREAM
+     */
+    private void createOrderGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    bytes("CREATE"), bytes(SECKILL_ORDER_STREAM), bytes(SECKILL_ORDER_GROUP), bytes("0"), bytes("MKSTREAM")));
+        } catch (RuntimeException e) {
+            // 消费者组已存在
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 订单消费者：从Stream消费者组中读取订单并写入数据库
+     */
+    private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String name) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, name);
+        }
+
+        @Override
+        public void run() {
+            // 启动时先处理上次没有确认的消息
+            handlePendingList();
+            while (running) {
+                try {
+                    // 获取消息队列中的订单：XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = read(SECKILL_ORDER_BATCH, 2000L);
+                    if (list == null || list.isEmpty()) {
+                        // 没有消息，继续下一次读取
+                        continue;
+                    }
+                    // 凑批：直到满一批或者等待超时
+                    List<MapRecord<String, Object, Object>> batch = new ArrayList<>(list);
+                    long deadline = System.currentTimeMillis() + SECKILL_ORDER_BATCH_WAIT;
+                    long remaining;
+                    while (batch.size() < SECKILL_ORDER_BATCH
+                            && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        List<MapRecord<String, Object, Object>> more = read(SECKILL_ORDER_BATCH - batch.size(), remaining);
+                        if (more == null || more.isEmpty()) {
+                            break;
+                        }
+                        batch.addAll(more);
+                    }
+                    handleRecords(batch);
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> read(int count, long blockMillis) {
+            return stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(count).block(Duration.ofMillis(blockMillis)),
+                    StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed()));
+        }
+
+        /**
+         * 处理已读取但没有确认的消息：XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders 0
+         */
+        private void handlePendingList() {
+            int failures = 0;
+            while (running) {
+                List<MapRecord<String, Object, Object>> list = null;
+                try {
+                    list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(SECKILL_ORDER_BATCH),
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from("0")));
+                    if (list == null || list.isEmpty()) {
+                        // pending-list中没有消息，结束
+                        return;
+                    }
+                    handleRecords(list);
+                    failures = 0;
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    if (list != null && !list.isEmpty()) {
+                        deadLetter(list);
+                    }
+                    try {
+                        // 指数退避，避免数据库短暂不可用时很快用完投递次数
+                        Thread.sleep(Math.min(SECKILL_ORDER_RETRY_BACKOFF << Math.min(failures++, 8), SECKILL_ORDER_MAX_BACKOFF));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 投递次数达到上限的消息转入死信队列并确认，不再阻塞后续的消息：
+         * XPENDING stream.orders g1 firstId lastId count c1
+         */
+        private void deadLetter(List<MapRecord<String, Object, Object>> list) {
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, consumer,
+                        Range.closed(list.get(0).getId().getValue(), list.get(list.size() - 1).getId().getValue()),
+                        list.size());
+                Map<RecordId, Long> exhausted = new HashMap<>();
+                for (PendingMessage message : pending) {
+                    if (message.getTotalDeliveryCount() >= SECKILL_ORDER_MAX_DELIVERIES) {
+                        exhausted.put(message.getId(), message.getTotalDeliveryCount());
+                    }
+                }
+                for (MapRecord<String, Object, Object> record : list) {
+                    Long deliveries = exhausted.get(record.getId());
+                    if (deliveries == null) {
+                        continue;
+                    }
+                    // 保留原消息的内容，人工处理后可以重新投递到订单队列
+                    stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                            .in(SECKILL_ORDER_DLQ_STREAM)
+                            .ofMap(record.getValue()));
+                    stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+                    log.error("订单消息{}投递{}次仍然失败，转入死信队列：{}", record.getId(), deliveries, record.getValue());
+                }
+            } catch (Exception e) {
+                log.error("转移死信订单消息异常", e);
+            }
+        }
+
+        private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            for (MapRecord<String, Object, Object> record : list) {
+                Map<Object, Object> value = record.getValue();
+                voucherOrders.add(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+            }
+            // 逐条创建时失败的消息，不确认，留在pending-list中重试
+            List<RecordId> failed = new ArrayList<>();
+            // 已写入数据库的订单，才加入超时取消队列
+            List<String> orderIds = new ArrayList<>(list.size());
+            try {
+                // 批量创建订单
+                voucherOrderService.createVoucherOrders(voucherOrders);
+                voucherOrders.forEach(voucherOrder -> orderIds.add(voucherOrder.getId().toString()));
+            } catch (Exception e) {
+                // 批量失败（重复消费导致主键或唯一索引冲突、库存不足等），逐条创建
+                log.warn("批量创建订单失败，改为逐条创建：{}", e.getMessage());
+                for (int i = 0; i < voucherOrders.size(); i++) {
+                    VoucherOrder voucherOrder = voucherOrders.get(i);
+                    try {
+                        if (voucherOrderService.createVoucherOrder(voucherOrder)) {
+                            orderIds.add(voucherOrder.getId().toString());
+                        }
+                    } catch (DuplicateKeyException ex) {
+                        log.error("订单{}已存在", voucherOrder.getId());
+                    } catch (Exception ex) {
+                        log.error("创建订单{}失败", voucherOrder.getId(), ex);
+                        failed.add(list.get(i).getId());
+                    }
+                }
+            }
+            List<RecordId> handled = new ArrayList<>(list.size());
+            for (MapRecord<String, Object, Object> record : list) {
+                if (!failed.contains(record.getId())) {
+                    handled.add(record.getId());
+                }
+            }
+            // 加入超时取消队列，重复加入只会覆盖到期时间
+            if (!orderIds.isEmpty()) {
+                long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+                redisDelayQueue.addAll(SECKILL_ORDER_TIMEOUT_KEY, orderIds, deadline);
+            }
+            // 确认消息：XACK stream.orders g1 id1 id2 ...
+            if (!handled.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                        handled.toArray(new RecordId[0]));
+            }
+            if (!failed.isEmpty()) {
+                // 交给pending-list处理，超过投递次数后转入死信队列
+                throw new IllegalStateException("订单消息处理失败：" + failed);
+            }
+        }
+    }
+
+    /**
+     * 每次领取的超时订单数量
+     */
+    private static final int TIMEOUT_ORDER_BATCH = 100;
+
+    /**
+     * 领取超时订单的租约时间，超过租约没有处理完的订单会被重新领取
+     */
+    private static final long TIMEOUT_ORDER_LEASE = 30000L;
+
+    /**
+     * 取消超时未支付的订单
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void cancelTimeoutOrders() {
+        List<String> orderIds;
+        do {
+            orderIds = redisDelayQueue.claim(SECKILL_ORDER_TIMEOUT_KEY, TIMEOUT_ORDER_BATCH, TIMEOUT_ORDER_LEASE);
+            List<String> handled = new ArrayList<>(orderIds.size());
+            for (String orderId : orderIds) {
+                try {
+                    VoucherOrder voucherOrder = voucherOrderService.cancelVoucherOrder(Long.valueOf(orderId));
+                    if (voucherOrder != null) {
+                        // 数据库事务提交后回滚Redis库存和已下单用户；回滚失败时订单留在队列中，重试时按订单ID幂等
+                        releaseCancelledOrder(voucherOrder);
+                    }
+                    handled.add(orderId);
+                } catch (Exception e) {
+                    // 租约到期后重新领取
+                    log.error("取消超时订单{}异常", orderId, e);
+                }
+            }
+            redisDelayQueue.remove(SECKILL_ORDER_TIMEOUT_KEY, handled);
+        } while (orderIds.size() == TIMEOUT_ORDER_BATCH);
+    }
+
+    /**
+     * 回滚秒杀资格：移除已下单用户，按需归还一个Redis库存
+     *
+     * @param restoreStock 是否归还库存，数据库已经没有库存时只移除用户
+     */
+    private void releaseAdmission(Long voucherId, Long userId, boolean restoreStock) {
+        int segments = seckillStockSegments.segments(voucherId);
+        String stockKey = seckillStockSegments.stockKey(voucherId, segments, seckillStockSegments.pick(segments));
+        Long result = stringRedisTemplate.execute(
+                ROLLBACK_SCRIPT,
+                Arrays.asList(stockKey, SeckillStockSegments.orderKey(voucherId)),
+                userId.toString(), restoreStock ? "1" : "0");
+        if (result != null && result == 1) {
+            // 库存补充，通知所有节点清除售罄标记
+            seckillStockGate.replenish(voucherId);
+        }
+    }
+
+    /**
+     * 订单取消后回滚秒杀资格：归还一个Redis库存并移除已下单用户，同一个订单只回滚一次
+     *
+     * @param voucherOrder
+     */
+    private void releaseCancelledOrder(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        int segments = seckillStockSegments.segments(voucherId);
+        String stockKey = seckillStockSegments.stockKey(voucherId, segments, seckillStockSegments.pick(segments));
+        Long result = stringRedisTemplate.execute(
+                CANCEL_SCRIPT,
+                Arrays.asList(stockKey, SeckillStockSegments.orderKey(voucherId), SeckillStockSegments.cancelledKey(voucherId),
+                        SeckillStockSegments.voucherKey(voucherId)),
+                voucherOrder.getUserId().toString(), voucherOrder.getId().toString(),
+                String.valueOf(TimeUnit.MINUTES.toMillis(payTimeoutMinutes)));
+        if (result != null && result == 1) {
+            seckillStockGate.replenish(voucherId);
+        }
+    }
+
+    /**
+     * 基于数据库的秒杀下单，用于秒杀券没有预热到Redis的情况
+     *
+     * @param voucherId
+     * @return
+     */
+    private Result seckillVoucherByDb(Long voucherId) {
         // 根据id查询秒杀优惠券
         SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
         // 判断秒杀是否开始或结束
@@ -67,20 +795,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long userId = UserHolder.getUser().getId();
         // 创建锁对象
         // SimpleRedisLock simpleRedisLock = new SimpleRedisLock(stringRedisTemplate, "order:" + userId);
-        RLock lock = redissonClient1.getLock("order:" + userId);
-        // 获取分布式锁
+        // RLock lock = redissonClient1.getLock("order:" + userId);
+        ILock lock = new ReentrantRedisLock(stringRedisTemplate, redisLockWatchdog, "order:" + userId);
+        // 获取分布式锁，由看门狗续期
         // boolean isLock = simpleRedisLock.tryLock(10L);
-        boolean isLock = lock.tryLock();
+        boolean isLock = lock.tryLock(30L);
         if (!isLock) {
             // 获取失败，根据业务需求返回错误信息或重试
             return Result.fail("一个只允许下一单！");
         }
         // 获取锁成功，创建订单
         try {
-            // 获取有事务功能的代理对象
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            // 创建订单
-            return proxy.createVoucherOrder(voucherId);
+            // 通过有事务功能的代理对象创建订单，异步下单的线程中没有AopContext
+            Result result = voucherOrderService.createVoucherOrder(voucherId);
+            if (Boolean.TRUE.equals(result.getSuccess())) {
+                // 和异步下单一样加入超时取消队列
+                long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+                redisDelayQueue.addAll(SECKILL_ORDER_TIMEOUT_KEY,
+                        Collections.singletonList(result.getData().toString()), deadline);
+            }
+            return result;
         } catch (IllegalStateException e) {
             throw new RuntimeException(e);
         } finally {
@@ -102,10 +836,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional
     public Result createVoucherOrder(Long voucherId) {
 
-        // 一人一单：查询订单，判断该用户是否已经抢购过该秒杀特价券
+        // 一人一单：查询订单，判断该用户是否已经抢购过该秒杀特价券，已取消的订单不算
         Long userId = UserHolder.getUser().getId();
 
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).ne("status", 4).count();
         if (count > 0) {
             // 用户下过单则不能再下单
             return Result.fail("用户已经购买过一次！");
@@ -121,7 +855,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
         // 创建订单存入数据库
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId(VOUCHER_ORDER_KEY);
+        long orderId = idGenerator.nextId(VOUCHER_ORDER_KEY);
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
@@ -129,4 +863,84 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 返回订单ID
         return Result.ok(orderId);
     }
+
+    /**
+     * 异步创建订单，资格已由Lua脚本校验，这里的一人一单判断用于兜底消息重复消费
+     *
+     * @param voucherOrder
+     * @return 订单是否已在数据库中：新创建或者重复消费时已经创建过返回true，一人多单、库存不足返回false
+     */
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        Long userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
+        VoucherOrder existing = query().select("id").eq("user_id", userId).eq("voucher_id", voucherId).ne("status", 4).one();
+        if (existing != null) {
+            if (existing.getId().equals(voucherOrder.getId())) {
+                // 同一条消息重复消费，订单已经创建过
+                return true;
+            }
+            log.error("用户{}已经购买过优惠券{}", userId, voucherId);
+            return false;
+        }
+        boolean isSuccess = seckillVoucherService.update()
+                .setSql("stock = stock -1")
+                .eq("voucher_id", voucherId)
+                .gt("stock", 0)
+                .update();
+        if (!isSuccess) {
+            // Redis库存比数据库多，订单无法创建：移除用户，让用户可以重新下单；Redis库存本来就多，不再归还
+            log.error("优惠券{}扣减库存失败", voucherId);
+            releaseAdmission(voucherId, userId, false);
+            return false;
+        }
+        save(voucherOrder);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 按优惠券合并扣减库存：update tb_seckill_voucher set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, Long> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            Long k = entry.getValue();
+            boolean isSuccess = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k)
+                    .update();
+            if (!isSuccess) {
+                // 抛出异常回滚整批，由调用方逐条处理
+                throw new IllegalStateException("优惠券" + entry.getKey() + "库存不足" + k);
+            }
+        }
+        // 多行INSERT插入订单
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
+    @Override
+    @Transactional
+    public VoucherOrder cancelVoucherOrder(Long orderId) {
+        // 只取消未支付的订单：update tb_voucher_order set status = 4 where id = ? and status = 1
+        boolean isSuccess = update()
+                .set("status", 4)
+                .eq("id", orderId)
+                .eq("status", 1)
+                .update();
+        if (!isSuccess) {
+            // 已经取消过的订单也返回，数据库已提交但Redis回滚失败时由调用方重试回滚；订单不存在或者已支付返回null
+            VoucherOrder voucherOrder = getById(orderId);
+            return voucherOrder != null && Integer.valueOf(4).equals(voucherOrder.getStatus()) ? voucherOrder : null;
+        }
+        VoucherOrder voucherOrder = getById(orderId);
+        // 归还库存
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return voucherOrder;
+    }
 }
@@ -7,11 +7,21 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CachePolicy;
+import com.hmdp.utils.SeckillStockSegments;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHERS_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHERS_TTL;
 
 /**
  * <p>
@@ -27,12 +37,48 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @PostConstruct
+    private void init() {
+        // 列表中的秒杀库存只用于展示，过期时间很短，实时库存查询querySeckillStock
+        cacheClient.registerPolicy(new CachePolicy(CACHE_SHOP_VOUCHERS_KEY)
+                .setTtl(CACHE_SHOP_VOUCHERS_TTL)
+                .setStrategy(CachePolicy.Strategy.MUTEX));
+    }
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        Voucher[] vouchers = cacheClient.query(CACHE_SHOP_VOUCHERS_KEY, shopId, Voucher[].class,
+                id -> getBaseMapper().queryVoucherOfShop(id).toArray(new Voucher[0]));
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(vouchers == null ? Collections.emptyList() : Arrays.asList(vouchers));
+    }
+
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        evictVoucherOfShopAfterCommit(voucher.getShopId());
+    }
+
+    /**
+     * 事务提交后删除商铺的优惠券列表缓存
+     *
+     * @param shopId
+     */
+    private void evictVoucherOfShopAfterCommit(Long shopId) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(CACHE_SHOP_VOUCHERS_KEY + shopId);
+            }
+        });
     }
 
     @Override
@@ -47,5 +93,29 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 事务提交后预热到Redis，事务回滚则不预热
+        Integer segments = voucher.getStockSegments();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                seckillVoucherService.preloadSeckillVoucher(seckillVoucher, segments);
+            }
+        });
+        evictVoucherOfShopAfterCommit(voucher.getShopId());
+    }
+
+    @Override
+    public Result querySeckillStock(Long voucherId) {
+        // 汇总各分段的剩余库存
+        Long stock = seckillStockSegments.remaining(voucherId);
+        if (stock == null) {
+            // 未预热到Redis，查询数据库
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            if (seckillVoucher == null) {
+                return Result.fail("秒杀券不存在！");
+            }
+            return Result.ok(seckillVoucher.getStock());
+        }
+        return Result.ok(stock);
     }
 }
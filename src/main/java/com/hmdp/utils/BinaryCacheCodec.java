@@ -0,0 +1,366 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 二进制编解码。
+ * <p>
+ * 格式：魔数(1) + 标志位(1) + 类型指纹(4) + [逻辑过期时间毫秒(8)] + 数据，数据超过阈值时压缩。
+ * 对象按字段顺序依次写入，每个类型第一次使用时通过反射生成字段的MethodHandle并缓存，之后不再反射
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    /**
+     * 魔数，负数字节，与JSON区分
+     */
+    private static final byte MAGIC = (byte) 0xB7;
+
+    private static final int FLAG_COMPRESSED = 1;
+
+    private static final int FLAG_EXPIRE = 1 << 1;
+
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * 空数据的类型指纹，任何类型都能解码
+     */
+    private static final int NULL_FINGERPRINT = 0;
+
+    /**
+     * 超过多少字节时压缩，小于等于0时不压缩
+     */
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, null);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return type.cast(read(bytes, type));
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        return write(value, expireTime);
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        if ((bytes[1] & FLAG_EXPIRE) == 0) {
+            throw new IllegalArgumentException("不是逻辑过期数据");
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(read(bytes, type));
+        long millis = ByteBuffer.wrap(bytes, HEADER_LENGTH, 8).getLong();
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()));
+        return redisData;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes, Class<?> type) {
+        if (bytes.length < HEADER_LENGTH || bytes[0] != MAGIC) {
+            return false;
+        }
+        int fingerprint = ByteBuffer.wrap(bytes, 2, 4).getInt();
+        return fingerprint == NULL_FINGERPRINT || fingerprint == CODECS.get(type).fingerprint;
+    }
+
+    private byte[] write(Object value, LocalDateTime expireTime) {
+        ValueCodec codec = value == null ? null : CODECS.get(value.getClass());
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(buffer);
+            writeNullable(out, codec, value);
+            out.flush();
+            byte[] payload = buffer.toByteArray();
+            int flags = 0;
+            if (compressThreshold > 0 && payload.length > compressThreshold) {
+                payload = deflate(payload);
+                flags |= FLAG_COMPRESSED;
+            }
+            if (expireTime != null) {
+                flags |= FLAG_EXPIRE;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(HEADER_LENGTH + (expireTime != null ? 8 : 0) + payload.length);
+            bytes.put(MAGIC).put((byte) flags).putInt(codec == null ? NULL_FINGERPRINT : codec.fingerprint);
+            if (expireTime != null) {
+                bytes.putLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+            bytes.put(payload);
+            return bytes.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object read(byte[] bytes, Class<?> type) {
+        int flags = bytes[1];
+        int offset = HEADER_LENGTH + ((flags & FLAG_EXPIRE) != 0 ? 8 : 0);
+        InputStream source = new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            source = new InflaterInputStream(source);
+        }
+        try (DataInputStream in = new DataInputStream(source)) {
+            return readNullable(in, CODECS.get(type));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] payload) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(payload.length / 2);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater)) {
+                out.write(payload);
+            }
+            return buffer.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, ValueCodec codec, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        codec.writer.write(out, value);
+    }
+
+    private static Object readNullable(DataInputStream in, ValueCodec codec) throws IOException {
+        return in.readByte() == 0 ? null : codec.reader.read(in);
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(DataOutputStream out, Object value) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Reader {
+        Object read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * 某个类型的编解码方式
+     */
+    private static final class ValueCodec {
+        final int fingerprint;
+        final Writer writer;
+        final Reader reader;
+
+        ValueCodec(int fingerprint, Writer writer, Reader reader) {
+            this.fingerprint = fingerprint;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * 基本类型和常用类型
+     */
+    private static final Map<Class<?>, ValueCodec> SIMPLE_CODECS = new HashMap<>();
+
+    static {
+        simple(Long.class, long.class, (out, v) -> out.writeLong((Long) v), DataInputStream::readLong);
+        simple(Integer.class, int.class, (out, v) -> out.writeInt((Integer) v), DataInputStream::readInt);
+        simple(Short.class, short.class, (out, v) -> out.writeShort((Short) v), DataInputStream::readShort);
+        simple(Byte.class, byte.class, (out, v) -> out.writeByte((Byte) v), DataInputStream::readByte);
+        simple(Double.class, double.class, (out, v) -> out.writeDouble((Double) v), DataInputStream::readDouble);
+        simple(Float.class, float.class, (out, v) -> out.writeFloat((Float) v), DataInputStream::readFloat);
+        simple(Boolean.class, boolean.class, (out, v) -> out.writeBoolean((Boolean) v), DataInputStream::readBoolean);
+        simple(Character.class, char.class, (out, v) -> out.writeChar((Character) v), DataInputStream::readChar);
+        simple(String.class, null, (out, v) -> writeString(out, (String) v), BinaryCacheCodec::readString);
+        simple(BigDecimal.class, null, (out, v) -> writeString(out, v.toString()), in -> new BigDecimal(readString(in)));
+        simple(LocalDateTime.class, null, (out, v) -> {
+            LocalDateTime time = (LocalDateTime) v;
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        }, in -> LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC));
+        simple(LocalDate.class, null, (out, v) -> out.writeLong(((LocalDate) v).toEpochDay()),
+                in -> LocalDate.ofEpochDay(in.readLong()));
+        simple(LocalTime.class, null, (out, v) -> out.writeLong(((LocalTime) v).toNanoOfDay()),
+                in -> LocalTime.ofNanoOfDay(in.readLong()));
+        simple(Date.class, null, (out, v) -> out.writeLong(((Date) v).getTime()), in -> new Date(in.readLong()));
+    }
+
+    private static void simple(Class<?> type, Class<?> primitive, Writer writer, Reader reader) {
+        ValueCodec codec = new ValueCodec(type.getName().hashCode(), writer, reader);
+        SIMPLE_CODECS.put(type, codec);
+        if (primitive != null) {
+            SIMPLE_CODECS.put(primitive, codec);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 每个类型的编解码方式，第一次使用时生成
+     */
+    private static final ClassValue<ValueCodec> CODECS = new ClassValue<ValueCodec>() {
+        @Override
+        protected ValueCodec computeValue(Class<?> type) {
+            ValueCodec codec = SIMPLE_CODECS.get(type);
+            if (codec != null) {
+                return codec;
+            }
+            if (type.isEnum()) {
+                return enumCodec(type);
+            }
+            if (isBean(type)) {
+                return beanCodec(type);
+            }
+            return jsonCodec(type);
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ValueCodec enumCodec(Class<?> type) {
+        return new ValueCodec(type.getName().hashCode(),
+                (out, v) -> writeString(out, ((Enum<?>) v).name()),
+                in -> Enum.valueOf((Class<Enum>) type, readString(in)));
+    }
+
+    /**
+     * 集合等其他类型按JSON写入
+     */
+    private static ValueCodec jsonCodec(Type genericType) {
+        return new ValueCodec(genericType.getTypeName().hashCode(),
+                (out, v) -> writeString(out, JSONUtil.toJsonStr(v)),
+                in -> JSONUtil.toBean(readString(in), genericType, false));
+    }
+
+    /**
+     * 自定义的类，有无参构造函数时按字段写入
+     */
+    private static boolean isBean(Class<?> type) {
+        if (type.isArray() || type.isInterface() || type.isPrimitive()
+                || Modifier.isAbstract(type.getModifiers()) || type.getName().startsWith("java")) {
+            return false;
+        }
+        try {
+            type.getDeclaredConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ValueCodec beanCodec(Class<?> type) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        int n = fields.size();
+        MethodHandle[] getters = new MethodHandle[n];
+        MethodHandle[] setters = new MethodHandle[n];
+        Class<?>[] fieldTypes = new Class<?>[n];
+        ValueCodec[] jsonCodecs = new ValueCodec[n];
+        StringBuilder schema = new StringBuilder(type.getName());
+        MethodHandle constructor;
+        try {
+            Constructor<?> ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            constructor = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+            for (int i = 0; i < n; i++) {
+                Field field = fields.get(i);
+                field.setAccessible(true);
+                getters[i] = lookup.unreflectGetter(field)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                setters[i] = lookup.unreflectSetter(field)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                Class<?> fieldType = field.getType();
+                fieldTypes[i] = fieldType;
+                if (!SIMPLE_CODECS.containsKey(fieldType) && !fieldType.isEnum() && !isBean(fieldType)) {
+                    // 泛型类型按字段声明的类型解析
+                    jsonCodecs[i] = jsonCodec(field.getGenericType());
+                }
+                schema.append(';').append(field.getName()).append(':').append(field.getGenericType().getTypeName());
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法生成" + type.getName() + "的编解码方式", e);
+        }
+        return new ValueCodec(schema.toString().hashCode(), (out, v) -> {
+            for (int i = 0; i < n; i++) {
+                Object field;
+                try {
+                    field = (Object) getters[i].invokeExact(v);
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+                // 嵌套的自定义类型每次从CODECS获取，避免自引用的类型生成时无限递归
+                writeNullable(out, jsonCodecs[i] != null ? jsonCodecs[i] : CODECS.get(fieldTypes[i]), field);
+            }
+        }, in -> {
+            try {
+                Object v = (Object) constructor.invokeExact();
+                for (int i = 0; i < n; i++) {
+                    Object field = readNullable(in, jsonCodecs[i] != null ? jsonCodecs[i] : CODECS.get(fieldTypes[i]));
+                    if (field != null) {
+                        setters[i].invokeExact(v, field);
+                    }
+                }
+                return v;
+            } catch (IOException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+}
@@ -1,18 +1,47 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -22,8 +51,380 @@ public class CacheClient {
 
     private final StringRedisTemplate redisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 本地缓存（一级缓存），没有开启时为null。W-TinyLFU淘汰，容量和过期时间都有上限
+     */
+    private final Cache<String, Object> localCache;
+
+    /**
+     * 本地缓存中的空对象
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * 锁的持有者标识前缀
+     */
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 互斥锁方案开启旧数据时，等待缓存重建多久后返回旧数据（毫秒）
+     */
+    private final long mutexMaxWait;
+
+    /**
+     * 等到锁过期仍然没有重建好时，同时直接查询数据库的线程数上限
+     */
+    private final Semaphore mutexDbFallbackPermits;
+
+    /**
+     * 等待缓存重建通知的线程，配合singleFlight每个key在本节点最多一个
+     */
+    private final Map<String, CompletableFuture<Void>> rebuildWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * 互斥锁方案最后一次读到的数据，等待重建超时时返回；没有开启时为null
+     */
+    private final Cache<String, Object> staleCache;
+
+    /**
+     * 按key前缀注册的缓存策略
+     */
+    private final Map<String, CachePolicy> policies = new ConcurrentHashMap<>();
+
+    /**
+     * 没有注册策略的key前缀使用的默认策略
+     */
+    private final Map<String, CachePolicy> defaultPolicies = new ConcurrentHashMap<>();
+
+    /**
+     * 默认的编解码方式
+     */
+    private static final CacheCodec DEFAULT_CODEC = new JsonCacheCodec();
+
+    /**
+     * 空对象
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 按key前缀注册的编解码方式
+     */
+    private final Map<String, CacheCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * 按key前缀注册的布隆过滤器，一定不存在的id直接返回空，不查询Redis和数据库
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 过期时间随机增加的比例，避免批量写入的缓存同时过期
+     */
+    private final double ttlJitterRatio;
+
+    /**
+     * 每秒过期数量的上限，超过时在随机范围内向后顺延，0表示不限制
+     */
+    private final int maxExpiryPerSecond;
+
+    /**
+     * 本节点写入的缓存的过期时间分布
+     */
+    private final CacheExpiryHistogram expiryHistogram = new CacheExpiryHistogram();
+
+    private final HotKeyDetector hotKeyDetector;
+
+    /**
+     * 热点key的本地副本，不受本地缓存开关控制，过期时间很短
+     */
+    private final Cache<String, Object> hotReplica;
+
+    /**
+     * 缓存重建线程池
+     */
+    private final ExecutorService cacheRebuildExecutor;
+
+    /**
+     * 提前刷新的时间点占逻辑过期时间的比例，0表示不提前刷新
+     */
+    private final double refreshAheadRatio;
+
+    /**
+     * 最近访问过的逻辑过期数据，一段时间没有访问后移除，不再提前刷新
+     */
+    private final Cache<String, RefreshEntry> refreshEntries;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer listenerContainer,
+                       MeterRegistry meterRegistry,
+                       HotKeyDetector hotKeyDetector,
+                       @Qualifier("cacheRebuildExecutor") ExecutorService cacheRebuildExecutor,
+                       @Value("${hmdp.cache.local.enabled:false}") boolean localEnabled,
+                       @Value("${hmdp.cache.local.maximum-size:10000}") long localMaximumSize,
+                       @Value("${hmdp.cache.local.expire-seconds:10}") long localExpireSeconds,
+                       @Value("${hmdp.cache.mutex.max-wait-millis:200}") long mutexMaxWait,
+                       @Value("${hmdp.cache.mutex.stale-enabled:false}") boolean staleEnabled,
+                       @Value("${hmdp.cache.mutex.max-db-fallback:10}") int mutexMaxDbFallback,
+                       @Value("${hmdp.cache.ttl.jitter-ratio:0.1}") double ttlJitterRatio,
+                       @Value("${hmdp.cache.ttl.max-expiry-per-second:0}") int maxExpiryPerSecond,
+                       @Value("${hmdp.cache.hotkey.replica-ttl-millis:1000}") long hotReplicaTtlMillis,
+                       @Value("${hmdp.cache.refresh-ahead.ratio:0.8}") double refreshAheadRatio,
+                       @Value("${hmdp.cache.refresh-ahead.idle-seconds:60}") long refreshAheadIdleSeconds) {
         this.redisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.mutexMaxWait = mutexMaxWait;
+        this.mutexDbFallbackPermits = new Semaphore(mutexMaxDbFallback);
+        this.ttlJitterRatio = ttlJitterRatio;
+        this.maxExpiryPerSecond = maxExpiryPerSecond;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheRebuildExecutor = cacheRebuildExecutor;
+        this.refreshAheadRatio = refreshAheadRatio;
+        this.refreshEntries = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterAccess(refreshAheadIdleSeconds, TimeUnit.SECONDS)
+                .build();
+        this.hotReplica = Caffeine.newBuilder()
+                .maximumSize(1000)
+                .expireAfterWrite(hotReplicaTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        Gauge.builder("cache.expiry.density.max", expiryHistogram, CacheExpiryHistogram::max)
+                .description("未来一小时内过期最集中的一秒的缓存数量")
+                .register(meterRegistry);
+        Gauge.builder("cache.expiry.scheduled", expiryHistogram, CacheExpiryHistogram::total)
+                .description("未来一小时内过期的缓存数量")
+                .register(meterRegistry);
+        this.localCache = !localEnabled ? null : Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        this.staleCache = !staleEnabled ? null : Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(10, TimeUnit.MINUTES)
+                .build();
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅缓存重建消息，唤醒等待重建的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> rebuilt = rebuildWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (rebuilt != null) {
+                rebuilt.complete(null);
+            }
+        }, new ChannelTopic(CACHE_REBUILT_CHANNEL));
+        // 订阅缓存删除消息，删除本地缓存和热点key副本
+        listenerContainer.addMessageListener(
+                (message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除本地缓存
+     *
+     * @param key
+     */
+    public void delete(String key) {
+        redisTemplate.delete(key);
+        invalidateLocal(key);
+        redisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 注册缓存策略，同时注册其中的编解码方式
+     *
+     * @param policy
+     */
+    public void registerPolicy(CachePolicy policy) {
+        policies.put(policy.getKeyPrefix(), policy);
+        if (policy.getCodec() != null) {
+            registerCodec(policy.getKeyPrefix(), policy.getCodec());
+        }
+    }
+
+    /**
+     * key前缀的缓存策略，没有注册时使用默认的空对象过期时间、锁前缀和锁过期时间
+     *
+     * @param keyPrefix
+     * @return
+     */
+    private CachePolicy policyOf(String keyPrefix) {
+        CachePolicy policy = policies.get(keyPrefix);
+        return policy != null ? policy : defaultPolicies.computeIfAbsent(keyPrefix, CachePolicy::new);
+    }
+
+    private CachePolicy registeredPolicy(String keyPrefix) {
+        CachePolicy policy = policies.get(keyPrefix);
+        if (policy == null || policy.getTtl() == null) {
+            throw new IllegalStateException("没有注册缓存策略：" + keyPrefix);
+        }
+        return policy;
+    }
+
+    /**
+     * 按注册的缓存策略查询
+     *
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @return
+     */
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback) {
+        CachePolicy policy = registeredPolicy(keyPrefix);
+        switch (policy.getStrategy()) {
+            case MUTEX:
+                return queryWithMutex(keyPrefix, id, type, dbFallback, policy.getTtl(), policy.getUnit());
+            case LOGICAL_EXPIRE:
+                return queryByLogicExpire(keyPrefix, id, type, dbFallback, policy.getTtl(), policy.getUnit());
+            default:
+                return queryByPassThrough(keyPrefix, id, type, dbFallback, policy.getTtl(), policy.getUnit());
+        }
+    }
+
+    /**
+     * 按注册的缓存策略批量查询
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param batchDbFallback
+     * @return
+     */
+    public <R, ID> Map<ID, R> queryAll(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                       Function<List<ID>, Map<ID, R>> batchDbFallback) {
+        CachePolicy policy = registeredPolicy(keyPrefix);
+        return queryAll(keyPrefix, ids, type, batchDbFallback, policy.getTtl(), policy.getUnit());
+    }
+
+    /**
+     * 注册编解码方式，没有注册的key使用JSON
+     *
+     * @param keyPrefix
+     * @param codec
+     */
+    public void registerCodec(String keyPrefix, CacheCodec codec) {
+        codecs.put(keyPrefix, codec);
+    }
+
+    private CacheCodec codecOf(String key) {
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return DEFAULT_CODEC;
+    }
+
+    /**
+     * 读取缓存，数据不能按type解码时（编码方式切换、类型字段变化）当作未命中。
+     * 滚动发布期间新旧节点共用同一个key，不删除，由本节点写回或过期覆盖
+     *
+     * @param key
+     * @param codec
+     * @param type
+     * @return 空对象返回长度为0的数组
+     */
+    private byte[] getRaw(String key, CacheCodec codec, Class<?> type) {
+        byte[] bytes = getRaw(key);
+        if (bytes != null && bytes.length > 0 && !codec.supports(bytes, type)) {
+            log.debug("缓存数据格式不匹配，当作未命中：{}", key);
+            return null;
+        }
+        return bytes;
+    }
+
+    private byte[] getRaw(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * 写入缓存
+     *
+     * @param key
+     * @param bytes
+     * @param seconds 过期时间（秒），小于等于0时不过期
+     */
+    private void setRaw(String key, byte[] bytes, long seconds) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (seconds > 0) {
+                connection.setEx(rawKey, seconds, bytes);
+            } else {
+                connection.set(rawKey, bytes);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 注册布隆过滤器
+     *
+     * @param keyPrefix
+     * @param bloomFilter
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 布隆过滤器判断id一定不存在
+     *
+     * @param keyPrefix
+     * @param id
+     * @return
+     */
+    private boolean rejectedByBloomFilter(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter != null && !bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 查询本地缓存，同时记录一次访问用于探测热点key
+     *
+     * @param key
+     * @return
+     */
+    private Object getLocal(String key) {
+        hotKeyDetector.record(key);
+        Object value = localCache == null ? null : localCache.getIfPresent(key);
+        return value != null ? value : hotReplica.getIfPresent(key);
+    }
+
+    private void putLocal(String key, Object value) {
+        Object local = value == null ? NULL_VALUE : value;
+        if (localCache != null) {
+            localCache.put(key, local);
+        }
+        if (hotKeyDetector.isHot(key)) {
+            // 热点key保存一份短时间的本地副本
+            hotReplica.put(key, local);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+        if (staleCache != null) {
+            staleCache.invalidate(key);
+        }
+        hotReplica.invalidate(key);
+    }
+
+    private void putStale(String key, Object value) {
+        if (staleCache != null) {
+            staleCache.put(key, value);
+        }
     }
 
     /**
@@ -35,7 +436,10 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        // null和空字符串写入空对象
+        byte[] bytes = value == null || "".equals(value) ? EMPTY : codecOf(key).encode(value);
+        setRaw(key, bytes, expireSeconds(time, unit));
+        invalidateLocal(key);
     }
 
     /**
@@ -47,10 +451,50 @@ public class CacheClient {
      * @param unit
      */
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(expireSeconds(time, unit));
+        setRaw(key, codecOf(key).encodeLogical(value, expireTime), 0);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 计算实际的过期时间：在[time, time * (1 + ttlJitterRatio)]内随机，
+     * 开启每秒上限时，如果选中的一秒过期数量已满，在随机范围内向后寻找较空闲的一秒
+     *
+     * @param time
+     * @param unit
+     * @return 过期时间（秒），至少为1秒
+     */
+    long expireSeconds(Long time, TimeUnit unit) {
+        long ttl = unit.toSeconds(time);
+        if (TimeUnit.SECONDS.toNanos(ttl) < unit.toNanos(time)) {
+            // 不足一秒的部分向上取整，避免毫秒级的过期时间变成0（永不过期或SETEX报错）
+            ttl++;
+        }
+        ttl = Math.max(ttl, 1);
+        long range = (long) (ttl * ttlJitterRatio);
+        long seconds = range > 0 ? ttl + ThreadLocalRandom.current().nextLong(range + 1) : ttl;
+        long now = System.currentTimeMillis() / 1000;
+        if (maxExpiryPerSecond > 0 && range > 0) {
+            long probes = Math.min(range, CacheExpiryHistogram.WINDOW_SECONDS);
+            long candidate = seconds;
+            for (long i = 0; i < probes && expiryHistogram.count(now + candidate) >= maxExpiryPerSecond; i++) {
+                candidate = candidate >= ttl + range ? ttl : candidate + 1;
+            }
+            if (expiryHistogram.count(now + candidate) < maxExpiryPerSecond) {
+                seconds = candidate;
+            }
+        }
+        expiryHistogram.record(now + seconds);
+        return seconds;
+    }
+
+    /**
+     * 未来一小时内每秒过期的缓存数量
+     *
+     * @return
+     */
+    public int[] expiryDensity() {
+        return expiryHistogram.density();
     }
 
     /**
@@ -60,27 +504,168 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryByPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            // 一定不存在
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = redisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(json)) {
+        // 查询本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        CacheCodec codec = codecOf(key);
+        byte[] bytes = getRaw(key, codec, type);
+        if (bytes != null && bytes.length > 0) {
             // 命中数据
-            return JSONUtil.toBean(json, type);
+            R r = codec.decode(bytes, type);
+            putLocal(key, r);
+            return r;
         }
-        if (json != null) {
+        if (bytes != null) {
             // 命中空对象
+            putLocal(key, null);
             return null;
         }
-        // 从数据库中查询
-        R r = dbFallback.apply(id);
-        if (r == null) {
-            // 缓存空对象
-            this.set(key, "", time, unit);
+        // 从数据库中查询，同一个key在本节点只查询一次
+        return singleFlight(key, () -> {
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                // 缓存空对象
+                setRaw(key, EMPTY, TimeUnit.MINUTES.toSeconds(policyOf(keyPrefix).getNullTtl()));
+                return null;
+            }
+            // 缓存
+            this.set(key, r, time, unit);
+            // 返回数据
+            return r;
+        });
+    }
+
+    /**
+     * 批量查询：一次MGET查询Redis，未命中的id一次查询数据库，再用一次pipeline写回缓存。
+     * 按缓存空对象的方式处理，只支持PASS_THROUGH策略的key前缀
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param batchDbFallback 根据多个id查询数据库，不存在的id不出现在结果中
+     * @param time
+     * @param unit
+     * @return 存在的数据，key为id
+     */
+    public <R, ID> Map<ID, R> queryAll(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                       Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        CachePolicy.Strategy strategy = policyOf(keyPrefix).getStrategy();
+        if (strategy != CachePolicy.Strategy.PASS_THROUGH) {
+            // 互斥锁、逻辑过期的数据格式和重建方式不同，不能批量写回
+            throw new IllegalArgumentException("批量查询不支持" + strategy + "策略：" + keyPrefix);
+        }
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        // 去重，先查询本地缓存，布隆过滤器判断一定不存在的id直接跳过
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (rejectedByBloomFilter(keyPrefix, id)) {
+                continue;
+            }
+            Object local = getLocal(keyPrefix + id);
+            if (local == null) {
+                remoteIds.add(id);
+            } else if (local != NULL_VALUE) {
+                result.put(id, type.cast(local));
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return result;
+        }
+        CacheCodec codec = codecOf(keyPrefix);
+        byte[][] rawKeys = new byte[remoteIds.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + remoteIds.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < rawKeys.length; i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes == null || (bytes.length > 0 && !codec.supports(bytes, type))) {
+                // 未命中，格式不匹配的数据会被覆盖
+                missIds.add(id);
+            } else if (bytes.length > 0) {
+                R r = codec.decode(bytes, type);
+                putLocal(keyPrefix + id, r);
+                result.put(id, r);
+            } else {
+                // 命中空对象
+                putLocal(keyPrefix + id, null);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        long nullSeconds = TimeUnit.MINUTES.toSeconds(policyOf(keyPrefix).getNullTtl());
+        // 一次查询数据库
+        Map<ID, R> loaded = batchDbFallback.apply(missIds);
+        // 一次pipeline写回缓存，不存在的id缓存空对象
+        List<byte[]> missValues = new ArrayList<>(missIds.size());
+        List<Long> missSeconds = new ArrayList<>(missIds.size());
+        for (ID id : missIds) {
+            R r = loaded.get(id);
+            missValues.add(r == null ? EMPTY : codec.encode(r));
+            missSeconds.add(r == null ? nullSeconds : expireSeconds(time, unit));
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < missIds.size(); i++) {
+                connection.setEx((keyPrefix + missIds.get(i)).getBytes(StandardCharsets.UTF_8),
+                        missSeconds.get(i), missValues.get(i));
+            }
             return null;
+        });
+        for (ID id : missIds) {
+            putLocal(keyPrefix + id, loaded.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * 正在加载中的key
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 合并同一个key的并发加载：第一个线程执行加载，其他线程等待并共享它的结果
+     *
+     * @param key
+     * @param loader
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(key, future);
+        if (loading != null) {
+            try {
+                return (R) loading.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
         }
-        // 缓存
-        this.set(key, r, time, unit);
-        // 返回数据
-        return r;
     }
 
     /**
@@ -90,50 +675,136 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, long timeout, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            // 一定不存在
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = redisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(json)) {
-            // 命中数据
-            return JSONUtil.toBean(json, type);
+        // 查询本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return local == NULL_VALUE ? null : type.cast(local);
         }
-        if (json != null) {
+        CacheCodec codec = codecOf(key);
+        byte[] bytes = getRaw(key, codec, type);
+        if (bytes != null && bytes.length > 0) {
+            // 命中数据，同时记录为旧数据，缓存过期后等待重建超时可以返回
+            R r = codec.decode(bytes, type);
+            putLocal(key, r);
+            putStale(key, r);
+            return r;
+        }
+        if (bytes != null) {
             // 命中空对象
+            putLocal(key, null);
             return null;
         }
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+        // 同一个key在本节点只有一个线程去竞争分布式锁，其他线程等待它的结果
+        return singleFlight(key, () -> loadWithMutex(key, policyOf(keyPrefix), codec, id, type, dbFallback, timeout, unit));
+    }
+
+    private <R, ID> R loadWithMutex(String key, CachePolicy policy, CacheCodec codec, ID id, Class<R> type,
+                                    Function<ID, R> dbFallback, long timeout, TimeUnit unit) {
+        String lockKey = policy.lockKey(id);
+        long start = System.currentTimeMillis();
+        long staleDeadline = start + mutexMaxWait;
+        // 持有锁的线程最多重建到锁过期，过期后重新竞争锁
+        long leaseDeadline = start + TimeUnit.SECONDS.toMillis(policy.getLockTtl());
+        CompletableFuture<Void> rebuilt = null;
         try {
-            if (!tryLock(lockKey)) {
-                // 获取分布式锁失败，睡眠后重试
-                Thread.sleep(50L);
-                queryWithMutex(keyPrefix, id, type, dbFallback, timeout, unit);
-            }
-            // 获取分布式锁成功，先DoubleCheck
-            json = redisTemplate.opsForValue().get(key);
-            if (json == null) {
-                // DoubleCheck还是没有，重建缓存
-                r = dbFallback.apply(id);
-                if (r == null) {
-                    redisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                    return null;
+            while (true) {
+                // 先登记等待，再检查缓存，避免错过检查之后才发出的重建通知
+                rebuilt = rebuildWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+                byte[] bytes = getRaw(key, codec, type);
+                if (bytes != null) {
+                    // 其他线程已经重建好缓存
+                    return decodeWithStale(key, codec, bytes, type);
                 }
-                this.set(key, r, timeout, unit);
-            } else {
-                // DoubleCheck已经有缓存了
-                r = JSONUtil.toBean(json, type);
+                String token = tryLock(lockKey, policy.getLockTtl());
+                if (token != null) {
+                    try {
+                        // 获取分布式锁成功，先DoubleCheck
+                        bytes = getRaw(key, codec, type);
+                        if (bytes != null) {
+                            return decodeWithStale(key, codec, bytes, type);
+                        }
+                        // DoubleCheck还是没有，重建缓存
+                        R r = dbFallback.apply(id);
+                        if (r == null) {
+                            setRaw(key, EMPTY, TimeUnit.MINUTES.toSeconds(policy.getNullTtl()));
+                        } else {
+                            this.set(key, r, timeout, unit);
+                            putStale(key, r);
+                        }
+                        // 通知所有等待重建的线程
+                        redisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, key);
+                        return r;
+                    } finally {
+                        // 只释放自己持有的锁
+                        unlock(lockKey, token);
+                    }
+                }
+                // 获取分布式锁失败，开启旧数据时等待mutexMaxWait后返回旧数据
+                long now = System.currentTimeMillis();
+                if (staleCache != null && now >= staleDeadline) {
+                    Object stale = staleCache.getIfPresent(key);
+                    if (stale != null) {
+                        return type.cast(stale);
+                    }
+                }
+                // 等待重建通知，最多等到锁过期
+                long waitUntil = staleCache != null && now < staleDeadline ? staleDeadline : leaseDeadline;
+                long remaining = waitUntil - now;
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    rebuilt.get(remaining, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // 重新检查缓存、竞争锁，锁过期后由本线程重建
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // 不会发生，重新检查缓存
+                }
+            }
+        } finally {
+            if (rebuilt != null) {
+                rebuildWaiters.remove(key, rebuilt);
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        }
+        // 等到锁过期仍然没有重建好（其他节点又获取了锁），返回本节点最后一次读到的旧数据；
+        // 没有旧数据时直接查询数据库，但不写缓存，同时查询的线程数有上限
+        Object stale = staleCache == null ? null : staleCache.getIfPresent(key);
+        if (stale != null) {
+            return type.cast(stale);
+        }
+        log.warn("等待缓存重建超时：{}", key);
+        if (!mutexDbFallbackPermits.tryAcquire()) {
+            throw new IllegalStateException("等待缓存重建超时：" + key);
+        }
+        try {
+            return dbFallback.apply(id);
         } finally {
-            unlock(lockKey);
+            mutexDbFallbackPermits.release();
         }
+    }
+
+    private <R> R decodeWithStale(String key, CacheCodec codec, byte[] bytes, Class<R> type) {
+        if (bytes.length == 0) {
+            // 空对象
+            return null;
+        }
+        R r = codec.decode(bytes, type);
+        putStale(key, r);
         return r;
     }
 
     /**
-     * 缓存重建线程池
+     * 本节点正在重建的key
      */
-    private static final ExecutorService CACHE_REBUILD_ES = Executors.newFixedThreadPool(10);
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
 
     /**
      * 缓存击穿：逻辑过期
@@ -142,60 +813,174 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryByLogicExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (rejectedByBloomFilter(keyPrefix, id)) {
+            // 一定不存在
+            return null;
+        }
         String key = keyPrefix + id;
-        String redisDataJson = redisTemplate.opsForValue().get(key);
-        if (StrUtil.isBlank(redisDataJson)) {
+        // 查询本地缓存，本地缓存中保存的是已经反序列化的数据
+        Object local = getLocal(key);
+        if (local instanceof RedisData && LocalDateTime.now().isBefore(((RedisData) local).getExpireTime())) {
+            RedisData localData = (RedisData) local;
+            touchRefreshEntry(keyPrefix, key, id, type, dbFallback, time, unit, localData.getExpireTime());
+            return type.cast(localData.getData());
+        }
+        CacheCodec codec = codecOf(key);
+        byte[] bytes = getRaw(key);
+        if (bytes == null || bytes.length == 0) {
             // 不是热点数据，直接返回空
             return null;
         }
-        RedisData redisData = JSONUtil.toBean(redisDataJson, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        if (!codec.supports(bytes, type)) {
+            // 其他节点按另一种格式写入，本节点无法解码：查询数据库返回，并按本节点的格式重建
+            rebuildLogical(keyPrefix, key, id, type, dbFallback, time, unit, null);
+            return dbFallback.apply(id);
+        }
+        // 解码一次，data已经是type类型
+        RedisData redisData = codec.decodeLogical(bytes, type);
+        R r = type.cast(redisData.getData());
         if (LocalDateTime.now().isBefore(redisData.getExpireTime())) {
-            // 缓存的热点数据未过期，返回
+            // 缓存的热点数据未过期，保存到本地缓存并返回
+            putLocal(key, redisData);
+            touchRefreshEntry(keyPrefix, key, id, type, dbFallback, time, unit, redisData.getExpireTime());
             return r;
         }
-        String lockKey = LOCK_SHOP_KEY + id;
-        if (tryLock(lockKey)) {
-            // 获取分布式锁成功，开辟独立线程去重建缓存
-            CACHE_REBUILD_ES.submit(() -> {
+        rebuildLogical(keyPrefix, key, id, type, dbFallback, time, unit, redisData.getExpireTime());
+        // 返回过期旧数据
+        return r;
+    }
+
+    /**
+     * 在重建线程池中获取分布式锁并重建逻辑过期数据
+     *
+     * @param observedExpireTime 读到的逻辑过期时间，DoubleCheck时Redis中的过期时间更晚说明已经被其他线程重建；
+     *                           为null表示读到的数据格式不匹配，DoubleCheck时已经能解码说明已经被重建
+     */
+    private <R, ID> void rebuildLogical(String keyPrefix, String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                        Long time, TimeUnit unit, LocalDateTime observedExpireTime) {
+        CachePolicy policy = policyOf(keyPrefix);
+        String lockKey = policy.lockKey(id);
+        if (!rebuilding.add(key)) {
+            // 本节点已经在重建，不再竞争分布式锁
+            return;
+        }
+        CacheCodec codec = codecOf(key);
+        try {
+            // 竞争分布式锁和重建都在重建线程池中执行，不占用请求线程和定时任务线程
+            cacheRebuildExecutor.execute(() -> {
+                String token = null;
                 try {
+                    token = tryLock(lockKey, policy.getLockTtl());
+                    if (token == null) {
+                        return;
+                    }
                     // 注意DoubleCheck，因为其他线程可能重建了缓存
-                    String redisDataJsonDoubleCheck = redisTemplate.opsForValue().get(key);
-                    RedisData redisDataDoubleCheck = JSONUtil.toBean(redisDataJsonDoubleCheck, RedisData.class);
-                    if (LocalDateTime.now().isAfter(redisDataDoubleCheck.getExpireTime())) {
+                    byte[] bytesDoubleCheck = getRaw(key, codec, type);
+                    if (bytesDoubleCheck == null || bytesDoubleCheck.length == 0 || (observedExpireTime != null
+                            && !codec.decodeLogical(bytesDoubleCheck, type).getExpireTime().isAfter(observedExpireTime))) {
                         // DoubleCheck还是旧数据，才重建缓存
                         this.setWithLogicExpire(key, dbFallback.apply(id), time, unit);
                     }
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("缓存重建失败：{}", key, e);
                 } finally {
                     // 释放分布式锁
-                    unlock(lockKey);
+                    if (token != null) {
+                        unlock(lockKey, token);
+                    }
+                    rebuilding.remove(key);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            // 线程池已满，放弃本次重建，下次访问再试
+            log.warn("缓存重建线程池已满，放弃重建：{}", key);
+            rebuilding.remove(key);
         }
-        // 返回过期旧数据
-        return r;
+    }
+
+    /**
+     * 最近访问过的逻辑过期数据
+     */
+    private static final class RefreshEntry {
+        final String keyPrefix;
+        final Object id;
+        final Class<?> type;
+        final Function<Object, ?> dbFallback;
+        final Long time;
+        final TimeUnit unit;
+        /**
+         * 最后一次读到的逻辑过期时间
+         */
+        volatile LocalDateTime expireTime;
+
+        RefreshEntry(String keyPrefix, Object id, Class<?> type, Function<Object, ?> dbFallback, Long time, TimeUnit unit) {
+            this.keyPrefix = keyPrefix;
+            this.id = id;
+            this.type = type;
+            this.dbFallback = dbFallback;
+            this.time = time;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * 记录一次访问
+     */
+    @SuppressWarnings("unchecked")
+    private <R, ID> void touchRefreshEntry(String keyPrefix, String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                           LocalDateTime expireTime) {
+        if (refreshAheadRatio <= 0) {
+            return;
+        }
+        RefreshEntry entry = refreshEntries.get(key,
+                k -> new RefreshEntry(keyPrefix, id, type, (Function<Object, ?>) dbFallback, time, unit));
+        entry.expireTime = expireTime;
+    }
+
+    /**
+     * 提前刷新：最近访问过的数据在逻辑过期时间过去refreshAheadRatio时重建，访问时不会读到过期数据
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.interval:1000}")
+    @SuppressWarnings("unchecked")
+    public void refreshAhead() {
+        if (refreshAheadRatio <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // asMap遍历不算访问，不会延长数据的保留时间
+        refreshEntries.asMap().forEach((key, entry) -> {
+            LocalDateTime expireTime = entry.expireTime;
+            long expireMillis = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            long ttlMillis = entry.unit.toMillis(entry.time);
+            if (now >= expireMillis - (long) (ttlMillis * (1 - refreshAheadRatio))) {
+                rebuildLogical(entry.keyPrefix, key, entry.id, (Class<Object>) entry.type, (Function<Object, Object>) entry.dbFallback,
+                        entry.time, entry.unit, expireTime);
+                // 假定已经重建，下次访问时更新为实际的过期时间，避免每次扫描都去竞争锁
+                entry.expireTime = LocalDateTime.now().plusSeconds(entry.unit.toSeconds(entry.time));
+            }
+        });
     }
 
     /**
      * 获取锁
      *
      * @param key
-     * @return
+     * @return 锁的持有者标识，获取失败返回null
      */
-    private boolean tryLock(String key) {
-        Boolean flag = redisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private String tryLock(String key, Long ttlSeconds) {
+        String token = ID_PREFIX + Thread.currentThread().getId();
+        Boolean flag = redisTemplate.opsForValue().setIfAbsent(key, token, ttlSeconds, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
     }
 
     /**
-     * 释放锁
+     * 释放锁，只有锁的持有者标识一致时才删除
      *
      * @param key
+     * @param token
      */
-    private void unlock(String key) {
-        redisTemplate.delete(key);
+    private void unlock(String key, String token) {
+        redisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 
 }
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存数据的编解码方式，按key前缀在CacheClient中注册
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码
+     *
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     *
+     * @param bytes
+     * @param type
+     * @return
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 编码逻辑过期数据
+     *
+     * @param value
+     * @param expireTime 逻辑过期时间
+     * @return
+     */
+    byte[] encodeLogical(Object value, LocalDateTime expireTime);
+
+    /**
+     * 解码逻辑过期数据，返回的RedisData中data已经转换为type类型
+     *
+     * @param bytes
+     * @param type
+     * @return
+     */
+    RedisData decodeLogical(byte[] bytes, Class<?> type);
+
+    /**
+     * 是否能按type解码，编码方式切换或类型字段变化后旧数据不能解码
+     *
+     * @param bytes
+     * @param type
+     * @return
+     */
+    boolean supports(byte[] bytes, Class<?> type);
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 缓存过期时间分布：统计本节点写入的缓存在未来一小时内每秒过期的数量。
+ * 环形数组按秒分桶，桶中记录所属的秒，过时的桶在下次写入时清零
+ */
+public class CacheExpiryHistogram {
+
+    /**
+     * 统计范围（秒）
+     */
+    public static final int WINDOW_SECONDS = 3600;
+
+    private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS);
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(WINDOW_SECONDS);
+
+    /**
+     * 记录一个过期时间
+     *
+     * @param epochSecond 过期时间（秒）
+     */
+    public void record(long epochSecond) {
+        long now = now();
+        if (epochSecond < now || epochSecond >= now + WINDOW_SECONDS) {
+            return;
+        }
+        int i = (int) (epochSecond % WINDOW_SECONDS);
+        long old = seconds.get(i);
+        if (old < epochSecond && seconds.compareAndSet(i, old, epochSecond)) {
+            // 桶中是一小时前的数据，清零
+            counts.set(i, 0);
+        }
+        counts.incrementAndGet(i);
+    }
+
+    /**
+     * 某一秒过期的数量
+     *
+     * @param epochSecond
+     * @return
+     */
+    public int count(long epochSecond) {
+        int i = (int) (epochSecond % WINDOW_SECONDS);
+        return seconds.get(i) == epochSecond ? counts.get(i) : 0;
+    }
+
+    /**
+     * 未来一小时内每秒过期的数量，下标0是当前秒
+     *
+     * @return
+     */
+    public int[] density() {
+        long now = now();
+        int[] density = new int[WINDOW_SECONDS];
+        for (int k = 0; k < WINDOW_SECONDS; k++) {
+            density[k] = count(now + k);
+        }
+        return density;
+    }
+
+    /**
+     * 未来一小时内过期最集中的一秒的数量
+     *
+     * @return
+     */
+    public int max() {
+        int max = 0;
+        for (int c : density()) {
+            max = Math.max(max, c);
+        }
+        return max;
+    }
+
+    /**
+     * 未来一小时内过期的总数
+     *
+     * @return
+     */
+    public long total() {
+        long total = 0;
+        for (int c : density()) {
+            total += c;
+        }
+        return total;
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
+
+/**
+ * 某个key前缀的缓存策略，在CacheClient中注册
+ */
+@Data
+@Accessors(chain = true)
+public class CachePolicy {
+
+    public enum Strategy {
+        /**
+         * 缓存空对象
+         */
+        PASS_THROUGH,
+        /**
+         * 互斥锁
+         */
+        MUTEX,
+        /**
+         * 逻辑过期
+         */
+        LOGICAL_EXPIRE
+    }
+
+    /**
+     * 缓存key前缀
+     */
+    private String keyPrefix;
+
+    /**
+     * 过期时间
+     */
+    private Long ttl;
+
+    private TimeUnit unit = TimeUnit.MINUTES;
+
+    /**
+     * 空对象过期时间（分钟）
+     */
+    private Long nullTtl = CACHE_NULL_TTL;
+
+    /**
+     * 锁key前缀，没有设置时为"lock:" + keyPrefix，不同前缀的锁不会冲突
+     */
+    private String lockKeyPrefix;
+
+    /**
+     * 锁过期时间（秒）
+     */
+    private Long lockTtl = LOCK_SHOP_TTL;
+
+    private Strategy strategy = Strategy.PASS_THROUGH;
+
+    /**
+     * 编解码方式，没有设置时使用JSON
+     */
+    private CacheCodec codec;
+
+    public CachePolicy(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    public String lockKey(Object id) {
+        return (lockKeyPrefix != null ? lockKeyPrefix : "lock:" + keyPrefix) + id;
+    }
+}
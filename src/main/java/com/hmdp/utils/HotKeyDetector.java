@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测：按比例抽样访问，Count-Min Sketch估算次数，维护本节点访问最多的K个key。
+ * 每个周期计数减半（老化），估算的QPS超过阈值的key判定为热点。
+ * <p>
+ * 请求线程只更新计数，估算次数超过准入线的key写入无锁的候选槽位；访问最多的K个key在老化时由候选key和上一周期的K个key合并得出
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+
+    private static final int WIDTH = 4096;
+
+    private final AtomicIntegerArray sketch = new AtomicIntegerArray(DEPTH * WIDTH);
+
+    /**
+     * 候选key槽位，按hash写入，冲突时覆盖；热点key访问频繁，被覆盖后很快会再次写入
+     */
+    private final AtomicReferenceArray<String> candidates;
+
+    /**
+     * 访问最多的K个key及其上一周期的估算次数，只在老化时整体替换
+     */
+    private volatile Map<String, Integer> topK = Collections.emptyMap();
+
+    /**
+     * 进入候选的最小估算次数：K个key已满时为其中最小的次数（已减半），否则为0
+     */
+    private volatile int admission;
+
+    /**
+     * 当前的热点key
+     */
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    /**
+     * 每多少次访问抽样一次
+     */
+    private final int sampleRate;
+
+    private final int k;
+
+    /**
+     * 热点key的QPS阈值
+     */
+    private final long thresholdQps;
+
+    /**
+     * 老化周期（毫秒）
+     */
+    private final long decayInterval;
+
+    public HotKeyDetector(MeterRegistry meterRegistry,
+                          @Value("${hmdp.cache.hotkey.sample-rate:10}") int sampleRate,
+                          @Value("${hmdp.cache.hotkey.top-k:32}") int k,
+                          @Value("${hmdp.cache.hotkey.threshold-qps:500}") long thresholdQps,
+                          @Value("${hmdp.cache.hotkey.decay-interval:10000}") long decayInterval) {
+        this.sampleRate = Math.max(1, sampleRate);
+        this.k = k;
+        this.thresholdQps = thresholdQps;
+        this.decayInterval = decayInterval;
+        // 槽位数不小于K的16倍（2的幂），减少热点key之间的覆盖
+        this.candidates = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(16, k * 16 - 1)) << 1);
+        Gauge.builder("cache.hotkey.count", this, d -> d.hotKeys.size())
+                .description("本节点当前的热点key数量")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @param key
+     */
+    public void record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch.incrementAndGet(i * WIDTH + index(h1, h2, i)));
+        }
+        if (estimate > admission) {
+            int slot = (h1 >>> 16) & (candidates.length() - 1);
+            // 已经在槽位中时只读不写，避免热点key反复写同一个缓存行
+            if (!key.equals(candidates.get(slot))) {
+                candidates.set(slot, key);
+            }
+        }
+    }
+
+    /**
+     * 是否热点key
+     *
+     * @param key
+     * @return
+     */
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 访问最多的K个key，按上一周期的估算次数倒序
+     *
+     * @return
+     */
+    public List<Map.Entry<String, Integer>> topKeys() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(topK.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        return entries;
+    }
+
+    /**
+     * 访问最多的K个key的估算QPS，按QPS倒序
+     *
+     * @return
+     */
+    public Map<String, Long> topKeyQps() {
+        Map<String, Long> qps = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : topKeys()) {
+            // 稳定时计数约为一个周期抽样次数的2倍
+            qps.put(entry.getKey(), (long) entry.getValue() * sampleRate * 1000 / 2 / Math.max(1L, decayInterval));
+        }
+        return qps;
+    }
+
+    /**
+     * 当前的热点key
+     *
+     * @return
+     */
+    public Set<String> hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 合并候选key得出访问最多的K个key并判定热点key，然后所有计数减半
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hotkey.decay-interval:10000}")
+    public void decay() {
+        // 每个周期减半，稳定时计数约为一个周期访问次数的2倍
+        long threshold = Math.max(1L, thresholdQps * decayInterval / 1000 * 2 / sampleRate);
+        Set<String> keys = new HashSet<>(topK.keySet());
+        for (int i = 0; i < candidates.length(); i++) {
+            String key = candidates.getAndSet(i, null);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            int estimate = estimate(key);
+            if (estimate > 0) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, estimate));
+            }
+        }
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        Map<String, Integer> top = new HashMap<>();
+        Set<String> hot = new HashSet<>();
+        for (Map.Entry<String, Integer> entry : entries.subList(0, Math.min(k, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+            if (entry.getValue() >= threshold) {
+                hot.add(entry.getKey());
+            }
+        }
+        for (int i = 0; i < sketch.length(); i++) {
+            int count = sketch.get(i);
+            if (count != 0) {
+                sketch.set(i, count >>> 1);
+            }
+        }
+        topK = Collections.unmodifiableMap(top);
+        admission = top.size() < k ? 0 : entries.get(k - 1).getValue() >>> 1;
+        if (!hot.equals(hotKeys)) {
+            log.info("热点key变化：{}", hot);
+        }
+        hotKeys = Collections.unmodifiableSet(hot);
+        if (log.isDebugEnabled() && !hot.isEmpty()) {
+            log.debug("访问最多的key：{}", topKeys().stream()
+                    .map(e -> e.getKey() + "=" + (long) e.getValue() * sampleRate)
+                    .collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * 估算key的访问次数
+     */
+    private int estimate(String key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch.get(i * WIDTH + index(h1, h2, i)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 64位hash（FNV-1a + murmur3的fmix64），不同行的下标由高低32位组合得出，
+     * String.hashCode相同的key在各行也会落到不同位置
+     */
+    private static long hash64(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int index(int h1, int h2, int i) {
+        return (h1 + i * h2) & (WIDTH - 1);
+    }
+}
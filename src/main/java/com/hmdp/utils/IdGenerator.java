@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 全局唯一ID生成器：高32位是时间戳（秒），低32位是序列号
+ */
+public interface IdGenerator {
+
+    /**
+     * 返回全局唯一ID
+     *
+     * @param keyPrefix 业务前缀
+     * @return
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * 异步返回全局唯一ID，不阻塞调用线程；本地生成ID的实现直接返回已完成的结果
+     *
+     * @param keyPrefix 业务前缀
+     * @return
+     */
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+}
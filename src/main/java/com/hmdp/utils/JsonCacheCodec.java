@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * JSON编解码，与之前直接写入Redis的JSON字符串格式一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (type.isArray()) {
+            // 列表按数组缓存
+            List<?> list = JSONUtil.toList(json, type.getComponentType());
+            return type.cast(list.toArray((Object[]) Array.newInstance(type.getComponentType(), list.size())));
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return encode(redisData);
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        if (redisData.getData() instanceof JSONObject) {
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        }
+        return redisData;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes, Class<?> type) {
+        // JSON以ASCII字符开头，二进制编码以负数字节开头
+        return bytes.length > 0 && bytes[0] >= 0;
+    }
+}
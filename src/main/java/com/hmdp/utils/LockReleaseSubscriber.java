@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * 锁释放通知：本节点第一个线程开始等待某把锁时订阅这把锁的释放频道，最后一个等待线程离开时取消订阅，
+ * 不接收其他锁的释放消息。等待同一把锁的线程共用一个信号量，锁释放时唤醒一个等待线程去竞争，不再轮询Redis
+ */
+@Component
+public class LockReleaseSubscriber implements MessageListener {
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 锁key -> 等待这把锁的线程
+     */
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+
+    public LockReleaseSubscriber(RedisMessageListenerContainer listenerContainer) {
+        this.listenerContainer = listenerContainer;
+    }
+
+    /**
+     * 订阅是异步建立的，第一次等待最多等这么久（毫秒）后重试，避免错过订阅生效前发出的释放通知
+     */
+    private static final long FIRST_WAIT_MILLIS = 100L;
+
+    /**
+     * 在等待时间内反复尝试获取锁：获取失败时等待锁释放的通知，最多等到锁过期
+     *
+     * @param key      锁key
+     * @param attempt  尝试获取锁，成功返回null，失败返回锁的剩余过期时间（毫秒），小于0表示没有过期时间
+     * @param waitTime 最长等待时间
+     * @param unit
+     * @return 是否获取成功
+     * @throws InterruptedException
+     */
+    public boolean acquire(String key, Supplier<Long> attempt, long waitTime, TimeUnit unit) throws InterruptedException {
+        Long ttl = attempt.get();
+        if (ttl == null) {
+            return true;
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        // 先登记等待，再重试，避免错过两次尝试之间发出的释放通知；
+        // 订阅和取消订阅都在compute中执行，同一把锁的订阅变更不会交错
+        Waiters w = waiters.compute(key, (k, v) -> {
+            Waiters entry = v;
+            if (entry == null) {
+                entry = new Waiters(new ChannelTopic(LOCK_RELEASED_CHANNEL + k));
+                listenerContainer.addMessageListener(this, entry.topic);
+            }
+            entry.count++;
+            return entry;
+        });
+        boolean first = true;
+        try {
+            while (true) {
+                ttl = attempt.get();
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 持有者宕机时不会有释放通知，最多等到锁过期
+                long timeout = ttl >= 0 ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ttl)) : remaining;
+                if (first) {
+                    timeout = Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(FIRST_WAIT_MILLIS));
+                    first = false;
+                }
+                w.released.tryAcquire(timeout, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            waiters.computeIfPresent(key, (k, v) -> {
+                if (--v.count > 0) {
+                    return v;
+                }
+                // 最后一个等待线程离开，取消订阅
+                listenerContainer.removeMessageListener(this, v.topic);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Waiters w = waiters.get(channel.substring(LOCK_RELEASED_CHANNEL.length()));
+        if (w != null) {
+            // 只唤醒一个线程，其余线程等下一次释放；被唤醒的线程已经超时离开时，多出的许可只会造成一次多余的重试
+            w.released.release();
+        }
+    }
+
+    private static final class Waiters {
+        private final ChannelTopic topic;
+        private final Semaphore released = new Semaphore(0);
+        /**
+         * 等待的线程数，只在compute中修改
+         */
+        private int count;
+
+        private Waiters(ChannelTopic topic) {
+            this.topic = topic;
+        }
+    }
+}
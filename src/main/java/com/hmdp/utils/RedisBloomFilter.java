@@ -0,0 +1,317 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 布隆过滤器：位图保存在Redis中，本地保留一份镜像，判断时只查询本地镜像。
+ * 新增元素时同时写入Redis并通过发布订阅通知其他节点更新镜像
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    /**
+     * 通知其他节点重新加载镜像的消息
+     */
+    private static final String RELOAD_MESSAGE = "*reload*";
+
+    /**
+     * 临时位图的过期时间（秒），每写入一页续期一次，重建中断时自动删除
+     */
+    private static final long REBUILD_TTL_SECONDS = 60L;
+
+    private static final DefaultRedisScript<Long> PUT_SCRIPT;
+
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+
+    static {
+        PUT_SCRIPT = new DefaultRedisScript<>();
+        PUT_SCRIPT.setLocation(new ClassPathResource("bloom_put.lua"));
+        PUT_SCRIPT.setResultType(Long.class);
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("bloom_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate redisTemplate;
+
+    /**
+     * 位图key
+     */
+    private final String key;
+
+    private final String channel;
+
+    /**
+     * 重建中的临时位图key，存在时说明正在重建
+     */
+    private final String tempKey;
+
+    /**
+     * 位数
+     */
+    private final long numBits;
+
+    /**
+     * 哈希函数个数
+     */
+    private final int numHashFunctions;
+
+    /**
+     * 本地镜像
+     */
+    private volatile AtomicLongArray bits;
+
+    /**
+     * @param redisTemplate
+     * @param listenerContainer
+     * @param key                位图key
+     * @param expectedInsertions 预计元素个数
+     * @param fpp                期望的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer,
+                            String key, long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("布隆过滤器参数错误");
+        }
+        this.redisTemplate = redisTemplate;
+        this.key = key;
+        this.channel = "channel:" + key;
+        this.tempKey = key + ":rebuilding";
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        // Redis位图最多2^32位
+        this.numBits = Math.min(Math.max(m, 64L), 1L << 32);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray(words(numBits));
+        log.info("布隆过滤器{}：预计元素{}，误判率{}，位数{}，哈希函数{}个，占用内存Redis {}字节、本地{}字节",
+                key, expectedInsertions, fpp, numBits, numHashFunctions, getRedisMemoryBytes(), getLocalMemoryBytes());
+        // 订阅其他节点新增的元素
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (RELOAD_MESSAGE.equals(body)) {
+                load();
+            } else {
+                setLocal(offsets(body));
+            }
+        }, new ChannelTopic(channel));
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false时一定不存在
+     *
+     * @param value
+     * @return
+     */
+    public boolean mightContain(Object value) {
+        AtomicLongArray current = bits;
+        for (long offset : offsets(String.valueOf(value))) {
+            if ((current.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素，正在重建时同时写入临时位图
+     *
+     * @param value
+     */
+    public void put(Object value) {
+        String member = String.valueOf(value);
+        long[] offsets = offsets(member);
+        setLocal(offsets);
+        Object[] args = Arrays.stream(offsets).mapToObj(String::valueOf).toArray();
+        redisTemplate.execute(PUT_SCRIPT, Arrays.asList(key, tempKey), args);
+        redisTemplate.convertAndSend(channel, member);
+    }
+
+    /**
+     * Redis中是否已有位图
+     *
+     * @return
+     */
+    public boolean exists() {
+        return Boolean.TRUE.equals(redisTemplate.hasKey(key));
+    }
+
+    /**
+     * 从Redis加载本地镜像。Redis位图按字节从高位到低位编号
+     */
+    public void load() {
+        byte[] raw = redisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        AtomicLongArray loaded = new AtomicLongArray(words(numBits));
+        if (raw != null) {
+            int limit = (int) Math.min(raw.length, (numBits + 7) >>> 3);
+            for (int i = 0; i < limit; i++) {
+                int b = raw[i] & 0xFF;
+                if (b == 0) {
+                    continue;
+                }
+                for (int j = 0; j < 8; j++) {
+                    if ((b & (0x80 >>> j)) != 0) {
+                        long offset = ((long) i << 3) + j;
+                        int w = (int) (offset >>> 6);
+                        loaded.set(w, loaded.get(w) | (1L << offset));
+                    }
+                }
+            }
+        }
+        bits = loaded;
+    }
+
+    /**
+     * 全量重建：分页遍历所有元素，写入临时位图后原子替换，再通知其他节点重新加载。
+     * 临时位图在遍历之前创建，重建期间新增的元素同时写入临时位图，不会丢失；
+     * 临时位图同时作为重建标记，同一时间只有一个节点在重建
+     *
+     * @param nextPage 根据上一页最后一个元素查询下一页，没有数据时返回空列表
+     * @return 元素个数
+     */
+    public long rebuild(Function<Long, List<Long>> nextPage) {
+        if (!Boolean.TRUE.equals(redisTemplate.opsForValue()
+                .setIfAbsent(tempKey, "", REBUILD_TTL_SECONDS, TimeUnit.SECONDS))) {
+            throw new IllegalStateException("布隆过滤器" + key + "正在重建");
+        }
+        byte[] rawTempKey = tempKey.getBytes(StandardCharsets.UTF_8);
+        long count = 0;
+        Long last = 0L;
+        List<Long> page;
+        try {
+            while (!(page = nextPage.apply(last)).isEmpty()) {
+                List<Long> offsets = new ArrayList<>(page.size() * numHashFunctions);
+                for (Long value : page) {
+                    for (long offset : offsets(String.valueOf(value))) {
+                        offsets.add(offset);
+                    }
+                }
+                redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Long offset : offsets) {
+                        connection.setBit(rawTempKey, offset, true);
+                    }
+                    // 续期临时位图
+                    connection.expire(rawTempKey, REBUILD_TTL_SECONDS);
+                    return null;
+                });
+                count += page.size();
+                last = page.get(page.size() - 1);
+            }
+        } catch (RuntimeException e) {
+            redisTemplate.delete(tempKey);
+            throw e;
+        }
+        Long swapped = redisTemplate.execute(SWAP_SCRIPT, Arrays.asList(key, tempKey));
+        if (swapped == null || swapped == 0L) {
+            throw new IllegalStateException("布隆过滤器" + key + "重建超时，临时位图已过期");
+        }
+        // 重新加载本地镜像，包含重建期间新增的元素
+        load();
+        redisTemplate.convertAndSend(channel, RELOAD_MESSAGE);
+        log.info("布隆过滤器{}重建完成，元素{}个，当前误判率{}", key, count, expectedFpp(count));
+        return count;
+    }
+
+    /**
+     * 元素个数为n时的误判率：(1 - e^(-kn/m))^k
+     *
+     * @param n
+     * @return
+     */
+    public double expectedFpp(long n) {
+        return Math.pow(1 - Math.exp(-(double) numHashFunctions * n / numBits), numHashFunctions);
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    /**
+     * Redis位图占用的内存
+     *
+     * @return 字节数
+     */
+    public long getRedisMemoryBytes() {
+        return (numBits + 7) >>> 3;
+    }
+
+    /**
+     * 本地镜像占用的内存
+     *
+     * @return 字节数
+     */
+    public long getLocalMemoryBytes() {
+        return (long) words(numBits) << 3;
+    }
+
+    private void setLocal(long[] offsets) {
+        AtomicLongArray current = bits;
+        for (long offset : offsets) {
+            int w = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long old;
+            do {
+                old = current.get(w);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!current.compareAndSet(w, old, old | mask));
+        }
+    }
+
+    /**
+     * 双重哈希计算k个位置：h1 + i * h2
+     *
+     * @param value
+     * @return
+     */
+    private long[] offsets(String value) {
+        // FNV-1a 64位哈希
+        long h1 = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h1 ^= value.charAt(i);
+            h1 *= 0x100000001b3L;
+        }
+        h1 = mix(h1);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1L;
+        long[] offsets = new long[numHashFunctions];
+        for (int i = 0; i < numHashFunctions; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, numBits);
+        }
+        return offsets;
+    }
+
+    /**
+     * MurmurHash3的fmix64
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int words(long numBits) {
+        return (int) ((numBits + 63) >>> 6);
+    }
+}
@@ -9,17 +9,46 @@ public class RedisConstants {
 
     public static final Long CACHE_NULL_TTL = 2L;
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "channel:cache:invalidate";
+    public static final String CACHE_REBUILT_CHANNEL = "channel:cache:rebuilt";
+
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final Long CACHE_SHOP_TTL = 30L;
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
 
     public static final String VOUCHER_ORDER_KEY = "order";
 
     public static final String CACHE_SHOPTYPES = "cache:shoptypes";
+    public static final Long CACHE_SHOPTYPES_TTL = 60L;
+
+    public static final String CACHE_SHOP_VOUCHERS_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_SHOP_VOUCHERS_TTL = 1L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    /**
+     * 锁释放通知的频道前缀，后面拼接锁key，作为参数传给unlock_notify.lua、reentrant_unlock.lua
+     */
+    public static final String LOCK_RELEASED_CHANNEL = "channel:lock:released:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_CANCELLED_KEY = "seckill:cancelled:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_REPLENISH_CHANNEL = "channel:seckill:replenish";
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "delay:order:timeout";
+    public static final String SECKILL_IDEMPOTENT_KEY = "seckill:idempotent:";
+    public static final Long SECKILL_IDEMPOTENT_TTL = 60L;
+    public static final String SECKILL_RECONCILE_LOCK_KEY = "lock:seckill:reconcile:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
+    public static final Long ID_WORKER_TTL = 30L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
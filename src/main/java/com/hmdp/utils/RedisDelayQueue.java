@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 基于ZSET的延迟队列：成员为任务，分数为到期时间戳（毫秒）。
+ * 任务只占用一个ZSET成员，不需要为每个任务创建线程或定时器
+ */
+@Component
+public class RedisDelayQueue {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("delay_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisDelayQueue(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 批量添加任务
+     *
+     * @param queue    队列key
+     * @param members  任务
+     * @param deadline 到期时间戳（毫秒）
+     */
+    public void addAll(String queue, Collection<String> members, long deadline) {
+        if (members.isEmpty()) {
+            return;
+        }
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(members.size());
+        for (String member : members) {
+            tuples.add(new DefaultTypedTuple<>(member, (double) deadline));
+        }
+        stringRedisTemplate.opsForZSet().add(queue, tuples);
+    }
+
+    /**
+     * 领取到期任务，任务在租约时间内不会被其他节点重复领取
+     *
+     * @param queue      队列key
+     * @param limit      最多领取数量
+     * @param leaseMillis 租约时间（毫秒）
+     * @return 到期任务
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> claim(String queue, int limit, long leaseMillis) {
+        long now = System.currentTimeMillis();
+        List<String> members = stringRedisTemplate.execute(
+                CLAIM_SCRIPT,
+                Collections.singletonList(queue),
+                String.valueOf(now), String.valueOf(limit), String.valueOf(now + leaseMillis));
+        return members == null ? Collections.emptyList() : members;
+    }
+
+    /**
+     * 删除已处理的任务
+     *
+     * @param queue
+     * @param members
+     */
+    public void remove(String queue, Collection<String> members) {
+        if (!members.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(queue, members.toArray());
+        }
+    }
+}
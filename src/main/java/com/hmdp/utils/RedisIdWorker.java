@@ -1,28 +1,125 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     /**
      * 开始时间戳
      */
-    private static final long BEGIN_TIMESTAMP = 1672531200L;
+    static final long BEGIN_TIMESTAMP = 1672531200L;
     /**
      * 序列号位数
      */
     private static final int COUNT_BITS = 32;
 
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    /**
+     * 时区偏移的刷新周期，夏令时切换都发生在整15分钟
+     */
+    private static final long ZONE_OFFSET_REFRESH_MILLIS = 15 * 60 * 1000L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 本地时区相对UTC的偏移，及其有效期
+     */
+    private static final class ZoneOffsetCache {
+        final long offsetSeconds;
+        final long validUntilMillis;
+
+        ZoneOffsetCache(long offsetSeconds, long validUntilMillis) {
+            this.offsetSeconds = offsetSeconds;
+            this.validUntilMillis = validUntilMillis;
+        }
+    }
+
+    private static volatile ZoneOffsetCache zoneOffsetCache;
+
+    /**
+     * 某一天的自增key，跨天时重新生成
+     */
+    private static final class DayKey {
+        final long day;
+        final String key;
+
+        DayKey(long day, String key) {
+            this.day = day;
+            this.key = key;
+        }
+    }
+
+    /**
+     * 各业务当天的自增key
+     */
+    private final Map<String, DayKey> dayKeys = new ConcurrentHashMap<>();
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 异步生成ID时使用Redisson的异步API自增
+     */
+    private final RedissonClient redissonClient;
+
+    /**
+     * 号段模式：每次从Redis预留一段序列号，在本地分配
+     */
+    private final boolean segmentEnabled;
+
+    /**
+     * 号段长度
+     */
+    private final long segmentStep;
+
+    /**
+     * 当前号段剩余多少比例时异步预取下一个号段
+     */
+    private final double prefetchRatio;
+
+    /**
+     * 各业务的号段
+     */
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * 预取号段的线程
+     */
+    private static final ExecutorService PREFETCH_ES = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("id-segment-prefetch-", true));
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Qualifier("redissonClient1") RedissonClient redissonClient,
+                         @Value("${hmdp.id.segment.enabled:false}") boolean segmentEnabled,
+                         @Value("${hmdp.id.segment.step:1000}") long segmentStep,
+                         @Value("${hmdp.id.segment.prefetch-ratio:0.2}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        this.segmentEnabled = segmentEnabled;
+        this.segmentStep = segmentStep;
+        this.prefetchRatio = prefetchRatio;
     }
 
     /**
@@ -31,10 +128,10 @@ public class RedisIdWorker {
      * @param keyPrefix 不同业务肯定基于不同的Key自增
      * @return
      */
+    @Override
     public long nextId(String keyPrefix) {
-        // 生成时间戳
-        LocalDateTime nowTime = LocalDateTime.now();
-        long nowSecond = nowTime.toEpochSecond(ZoneOffset.UTC);
+        // 生成时间戳，本地时间按UTC换算成秒，与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)相同
+        long nowSecond = nowSecond();
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         // 生成序列号
         /**
@@ -51,13 +148,158 @@ public class RedisIdWorker {
          * 这样做还有好处，比如我想看某天的订单量直接看这个key的值就行了，即还有统计的好处
          *
          */
-        String dateStr = nowTime.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        String key = "icr:" + keyPrefix + ":" + dateStr;
-        long count = stringRedisTemplate.opsForValue().increment(key);
+        String key = dayKey(keyPrefix, nowSecond);
+        long count = segmentEnabled ? nextCount(keyPrefix, key) : stringRedisTemplate.opsForValue().increment(key);
         // 拼接时间戳和序列号
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 异步返回全局唯一ID：号段模式在本地分配，否则用异步的INCR，不阻塞调用线程
+     *
+     * @param keyPrefix
+     * @return
+     */
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentEnabled) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        long nowSecond = nowSecond();
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        return redissonClient.getAtomicLong(dayKey(keyPrefix, nowSecond)).incrementAndGetAsync()
+                .thenApply(count -> timestamp << COUNT_BITS | count)
+                .toCompletableFuture();
+    }
+
+    /**
+     * 当前本地时间按UTC换算的秒数，不创建对象
+     *
+     * @return
+     */
+    static long nowSecond() {
+        long millis = System.currentTimeMillis();
+        ZoneOffsetCache cache = zoneOffsetCache;
+        if (cache == null || millis >= cache.validUntilMillis) {
+            long offsetSeconds = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+            long validUntil = (millis / ZONE_OFFSET_REFRESH_MILLIS + 1) * ZONE_OFFSET_REFRESH_MILLIS;
+            cache = new ZoneOffsetCache(offsetSeconds, validUntil);
+            zoneOffsetCache = cache;
+        }
+        return Math.floorDiv(millis, 1000L) + cache.offsetSeconds;
+    }
+
+    /**
+     * 当天的自增key：icr:业务前缀:yyyy:MM:dd，同一天内复用同一个字符串
+     *
+     * @param keyPrefix
+     * @param nowSecond
+     * @return
+     */
+    String dayKey(String keyPrefix, long nowSecond) {
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        DayKey dayKey = dayKeys.get(keyPrefix);
+        if (dayKey == null || dayKey.day != day) {
+            dayKey = new DayKey(day, "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dayKeys.put(keyPrefix, dayKey);
+        }
+        return dayKey.key;
+    }
+
+    /**
+     * 号段：[start, end]，只属于某一天的key，跨天后作废，否则会与新一天的序列号重复
+     */
+    private static final class Segment {
+        final String key;
+        final long end;
+        /**
+         * 分配到这个值时预取下一个号段
+         */
+        final long watermark;
+        final AtomicLong cursor;
+
+        Segment(String key, long start, long end, long watermark) {
+            this.key = key;
+            this.end = end;
+            this.watermark = watermark;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 双缓冲：当前号段用到水位线时异步预取下一个号段，当前号段用完时直接切换
+     */
+    private static final class SegmentBuffer {
+        volatile Segment current;
+        volatile Segment next;
+        final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+    /**
+     * 号段模式分配序列号
+     *
+     * @param keyPrefix
+     * @param key       当天的自增key
+     * @return
+     */
+    private long nextCount(String keyPrefix, String key) {
+        SegmentBuffer buffer = segmentBuffers.get(keyPrefix);
+        if (buffer == null) {
+            buffer = segmentBuffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        }
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.key.equals(key)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.watermark) {
+                        prefetch(buffer, key);
+                    }
+                    return count;
+                }
+            }
+            // 号段用完或者跨天，切换到预取的号段，没有预取好时同步获取
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    // 其他线程已经切换
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                buffer.current = next != null && next.key.equals(key) ? next : fetchSegment(key);
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String key) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        PREFETCH_ES.execute(() -> {
+            try {
+                buffer.next = fetchSegment(key);
+            } catch (Exception e) {
+                // 预取失败，号段用完时同步获取
+                log.warn("预取号段失败：{}", key, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * 从Redis预留一个号段
+     *
+     * @param key
+     * @return
+     */
+    private Segment fetchSegment(String key) {
+        long end = stringRedisTemplate.opsForValue().increment(key, segmentStep);
+        long start = end - segmentStep + 1;
+        long watermark = end - (long) (segmentStep * prefetchRatio);
+        return new Segment(key, start, end, Math.max(start, watermark));
+    }
+
     public static void main(String[] args) {
         LocalDateTime basicTime = LocalDateTime.of(2023, 1, 1, 0, 0, 0);
         long basicSecond = basicTime.toEpochSecond(ZoneOffset.UTC);
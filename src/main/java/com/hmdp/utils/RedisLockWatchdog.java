@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 锁续期看门狗：本节点持有的所有锁共用一个线程，到期三分之一时续期，
+ * 同一个周期内需要续期的锁用一次pipeline发送，脚本以EVALSHA执行
+ */
+@Slf4j
+@Component
+public class RedisLockWatchdog {
+
+    /**
+     * 检查周期（毫秒）
+     */
+    private static final long TICK_MILLIS = 500L;
+
+    private static final byte[] RENEW_SCRIPT;
+
+    private static final String RENEW_SCRIPT_SHA;
+
+    static {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        RENEW_SCRIPT_SHA = script.getSha1();
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点持有的锁，key为 锁key + 持有者标识
+     */
+    private final Map<String, Entry> held = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lock-watchdog-", true));
+
+    public RedisLockWatchdog(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        scheduler.scheduleWithFixedDelay(this::renewAll, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        scheduler.shutdownNow();
+        held.clear();
+    }
+
+    /**
+     * 开始续期，重入时只更新续期时间
+     */
+    void watch(String key, String holder, long leaseMillis) {
+        held.compute(key + holder, (k, entry) -> {
+            if (entry == null) {
+                return new Entry(key, holder, leaseMillis);
+            }
+            entry.renewedAt = System.currentTimeMillis();
+            return entry;
+        });
+    }
+
+    /**
+     * 停止续期
+     */
+    void unwatch(String key, String holder) {
+        held.remove(key + holder);
+    }
+
+    /**
+     * 正在续期的锁的过期时间，没有续期时返回默认值
+     */
+    long leaseMillis(String key, String holder, long defaultValue) {
+        Entry entry = held.get(key + holder);
+        return entry == null ? defaultValue : entry.leaseMillis;
+    }
+
+    private void renewAll() {
+        if (held.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : held.values()) {
+            if (now - entry.renewedAt >= entry.leaseMillis / 3) {
+                due.add(entry);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        try {
+            renew(due, now);
+        } catch (Exception e) {
+            log.error("锁续期失败", e);
+        }
+    }
+
+    private void renew(List<Entry> entries, long now) {
+        List<Object> results;
+        try {
+            results = renewPipelined(entries);
+        } catch (RedisPipelineException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            // Redis重启或主从切换后脚本缓存丢失，重新加载后重试
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptLoad(RENEW_SCRIPT));
+            results = renewPipelined(entries);
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Object renewed = results.get(i);
+            if (renewed instanceof Long && (Long) renewed == 1L) {
+                entry.renewedAt = now;
+            } else {
+                // 锁已经过期或被释放，不再续期
+                held.remove(entry.key + entry.holder, entry);
+                log.warn("锁已丢失：{}", entry.key);
+            }
+        }
+    }
+
+    private List<Object> renewPipelined(List<Entry> entries) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Entry entry : entries) {
+                connection.evalSha(RENEW_SCRIPT_SHA, ReturnType.INTEGER, 1,
+                        entry.keyBytes, entry.holderBytes, entry.leaseBytes);
+            }
+            return null;
+        });
+    }
+
+    private static boolean isNoScript(RedisPipelineException e) {
+        List<Throwable> errors = new ArrayList<>();
+        errors.add(e);
+        for (Object result : e.getPipelineResult()) {
+            if (result instanceof Throwable) {
+                errors.add((Throwable) result);
+            }
+        }
+        for (Throwable error : errors) {
+            for (Throwable t = error; t != null; t = t.getCause()) {
+                if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String holder;
+        private final long leaseMillis;
+        private final byte[] keyBytes;
+        private final byte[] holderBytes;
+        private final byte[] leaseBytes;
+        /**
+         * 最后一次续期（或加锁）的时间
+         */
+        private volatile long renewedAt;
+
+        private Entry(String key, String holder, long leaseMillis) {
+            this.key = key;
+            this.holder = holder;
+            this.leaseMillis = leaseMillis;
+            this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            this.holderBytes = holder.getBytes(StandardCharsets.UTF_8);
+            this.leaseBytes = String.valueOf(leaseMillis).getBytes(StandardCharsets.UTF_8);
+            this.renewedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * 基于Redis实现的可重入分布式锁：Hash结构保存 持有者标识 -> 重入次数，
+ * 持有期间由看门狗自动续期，业务执行时间超过过期时间也不会丢锁
+ */
+public class ReentrantRedisLock implements ILock {
+
+    /**
+     * key的统一前缀
+     */
+    private static final String KEY_PREFIX = "lock:";
+
+    /**
+     * 获取机器的UUID
+     */
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    /**
+     * 默认过期时间；没有续期记录时（锁已丢失），重入释放也使用这个值
+     */
+    private static final long DEFAULT_LEASE_MILLIS = 30000L;
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisLockWatchdog watchdog;
+
+    private final String key;
+
+    /**
+     * 阻塞式获取锁时用于等待锁释放的通知
+     */
+    private final LockReleaseSubscriber releaseSubscriber;
+
+    public ReentrantRedisLock(StringRedisTemplate stringRedisTemplate, RedisLockWatchdog watchdog, String name) {
+        this(stringRedisTemplate, watchdog, null, name);
+    }
+
+    public ReentrantRedisLock(StringRedisTemplate stringRedisTemplate, RedisLockWatchdog watchdog,
+                              LockReleaseSubscriber releaseSubscriber, String name) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.watchdog = watchdog;
+        this.releaseSubscriber = releaseSubscriber;
+        this.key = KEY_PREFIX + name;
+    }
+
+    /**
+     * 非阻塞式：尝试获取锁，获取成功后每过三分之一的过期时间续期一次，直到释放
+     *
+     * @param timeoutSec 过期时间
+     * @return
+     */
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return tryAcquire(holder(), TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    /**
+     * 阻塞式：在waitTime内尝试获取锁，获取成功后同样由看门狗续期，需要用带LockReleaseSubscriber的构造函数创建
+     *
+     * @param waitTime  最长等待时间
+     * @param leaseTime 过期时间，小于等于0时使用默认值
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        if (releaseSubscriber == null) {
+            throw new IllegalStateException("阻塞式获取锁需要LockReleaseSubscriber");
+        }
+        String holder = holder();
+        long leaseMillis = leaseTime > 0 ? unit.toMillis(leaseTime) : DEFAULT_LEASE_MILLIS;
+        return releaseSubscriber.acquire(key, () -> tryAcquire(holder, leaseMillis), waitTime, unit);
+    }
+
+    @Override
+    public void unlock() {
+        String holder = holder();
+        long leaseMillis = watchdog.leaseMillis(key, holder, DEFAULT_LEASE_MILLIS);
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key),
+                holder, String.valueOf(leaseMillis), LOCK_RELEASED_CHANNEL + key);
+        // 1表示重入次数减一后仍然持有；0表示已释放；null表示已经不是持有者（锁过期）
+        if (result == null || result == 0L) {
+            watchdog.unwatch(key, holder);
+        }
+    }
+
+    /**
+     * 当前线程是否持有锁
+     *
+     * @return
+     */
+    public boolean isHeldByCurrentThread() {
+        return stringRedisTemplate.opsForHash().hasKey(key, holder());
+    }
+
+    /**
+     * 尝试获取锁，成功后交给看门狗续期
+     *
+     * @return 获取成功返回null，否则为锁的剩余过期时间（毫秒）
+     */
+    private Long tryAcquire(String holder, long leaseMillis) {
+        Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(key),
+                holder, String.valueOf(leaseMillis));
+        if (ttl == null) {
+            watchdog.watch(key, holder, leaseMillis);
+        }
+        return ttl;
+    }
+
+    /**
+     * 线程标识：UUID + 线程ID
+     */
+    private static String holder() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+}
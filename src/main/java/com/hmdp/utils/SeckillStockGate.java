@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_REPLENISH_CHANNEL;
+
+/**
+ * 本地售罄标记：秒杀券库存为0后，本节点直接拒绝请求，不再访问Redis和数据库；
+ * 库存补充时通过Redis发布订阅通知所有节点清除标记。
+ * 每次补充时版本号加一，标记时版本号已经变化说明判断售罄之后库存被补充过，不再标记；
+ * 标记有较短的过期时间，补充消息丢失（订阅重连）时不会一直拒绝
+ */
+@Slf4j
+@Component
+public class SeckillStockGate implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 秒杀券的补充版本号和售罄标记
+     */
+    private final Map<Long, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * 售罄标记的过期时间（纳秒）
+     */
+    private final long soldOutTtlNanos;
+
+    public SeckillStockGate(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+                            @Value("${hmdp.seckill.sold-out-ttl-millis:5000}") long soldOutTtlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.soldOutTtlNanos = TimeUnit.MILLISECONDS.toNanos(soldOutTtlMillis);
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅库存补充消息
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_REPLENISH_CHANNEL));
+    }
+
+    /**
+     * 判断秒杀券在本节点是否已标记售罄
+     *
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        State state = states.get(voucherId);
+        return state != null && state.soldOut && System.nanoTime() - state.markedAt < soldOutTtlNanos;
+    }
+
+    /**
+     * 当前的补充版本号，在查询库存之前获取，标记售罄时传入
+     *
+     * @param voucherId
+     * @return
+     */
+    public long epoch(Long voucherId) {
+        State state = states.get(voucherId);
+        return state == null ? 0L : state.epoch;
+    }
+
+    /**
+     * 标记秒杀券售罄，版本号与查询库存之前获取的一致时才标记
+     *
+     * @param voucherId
+     * @param epoch     查询库存之前获取的版本号
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        states.compute(voucherId, (k, state) -> {
+            long current = state == null ? 0L : state.epoch;
+            // 查询库存之后收到过补充消息，库存可能已经不为0
+            return current != epoch ? state : new State(current, true, System.nanoTime());
+        });
+    }
+
+    /**
+     * 库存补充后调用，清除本节点标记并广播给其他节点
+     *
+     * @param voucherId
+     */
+    public void replenish(Long voucherId) {
+        clear(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_REPLENISH_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String voucherId = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            clear(Long.valueOf(voucherId));
+        } catch (NumberFormatException e) {
+            log.error("无效的库存补充消息：{}", voucherId);
+        }
+    }
+
+    /**
+     * 清除售罄标记，版本号加一
+     */
+    private void clear(Long voucherId) {
+        states.compute(voucherId, (k, state) -> new State(state == null ? 1L : state.epoch + 1, false, 0L));
+    }
+
+    private static final class State {
+        private final long epoch;
+        private final boolean soldOut;
+        /**
+         * 标记售罄的时间（System.nanoTime）
+         */
+        private final long markedAt;
+
+        private State(long epoch, boolean soldOut, long markedAt) {
+            this.epoch = epoch;
+            this.soldOut = soldOut;
+            this.markedAt = markedAt;
+        }
+    }
+}
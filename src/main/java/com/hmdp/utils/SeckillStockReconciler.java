@@ -0,0 +1,344 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollectionUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账：比较Redis中的库存、已下单用户与数据库中的库存、订单数。
+ * <p>
+ * 守恒差值 =（Redis库存 + 已下单用户数）-（数据库库存 + 有效订单数），与队列中未落库的订单无关，随时可信；
+ * 库存差值、用户差值只有在订单队列消费完时才可信。Redis和数据库不是同时读取的，
+ * 所以只有连续两次对账得到相同差值时才会按需修复。
+ * <p>
+ * 每个节点都会对账、上报指标，修复时按秒杀券加分布式锁，库存以对账时读到的值做比较后修改，多个节点不会重复修复
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    /**
+     * 每批处理的数量
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * 订单状态：已取消
+     */
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    private static final String[] GAUGE_NAMES = {
+            "seckill.reconcile.conservation.drift",
+            "seckill.reconcile.stock.drift",
+            "seckill.reconcile.buyer.drift"
+    };
+
+    private static final DefaultRedisScript<Long> REPAIR_SCRIPT;
+
+    static {
+        REPAIR_SCRIPT = new DefaultRedisScript<>();
+        REPAIR_SCRIPT.setLocation(new ClassPathResource("seckill_stock_repair.lua"));
+        REPAIR_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final ISeckillVoucherService seckillVoucherService;
+
+    private final IVoucherOrderService voucherOrderService;
+
+    private final SeckillStockSegments seckillStockSegments;
+
+    private final SeckillStockGate seckillStockGate;
+
+    private final MeterRegistry meterRegistry;
+
+    private final RedissonClient redissonClient;
+
+    /**
+     * 是否自动修复
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    /**
+     * 各秒杀券的差值指标：[守恒差值, 库存差值, 用户差值]
+     */
+    private final Map<Long, AtomicLong[]> drifts = new ConcurrentHashMap<>();
+
+    public SeckillStockReconciler(StringRedisTemplate stringRedisTemplate,
+                                  ISeckillVoucherService seckillVoucherService,
+                                  IVoucherOrderService voucherOrderService,
+                                  SeckillStockSegments seckillStockSegments,
+                                  SeckillStockGate seckillStockGate,
+                                  MeterRegistry meterRegistry,
+                                  @Qualifier("redissonClient1") RedissonClient redissonClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillVoucherService = seckillVoucherService;
+        this.voucherOrderService = voucherOrderService;
+        this.seckillStockSegments = seckillStockSegments;
+        this.seckillStockGate = seckillStockGate;
+        this.meterRegistry = meterRegistry;
+        this.redissonClient = redissonClient;
+    }
+
+    @Scheduled(initialDelay = 60000L, fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        // 订单队列是否已消费完，只有消费完时Redis和数据库才应该完全一致
+        boolean quiescent = isOrderStreamDrained();
+        LocalDateTime since = LocalDateTime.now().minusHours(1);
+        // 本次对账的秒杀券，不在其中的（已结束或未预热）移除指标
+        Set<Long> active = new HashSet<>();
+        long lastId = 0;
+        while (true) {
+            // 按主键分页查询正在进行或者刚结束的秒杀券
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", lastId)
+                    .gt("end_time", since)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + BATCH_SIZE)
+                    .list();
+            for (SeckillVoucher seckillVoucher : vouchers) {
+                try {
+                    if (reconcile(seckillVoucher, quiescent)) {
+                        active.add(seckillVoucher.getVoucherId());
+                    }
+                } catch (Exception e) {
+                    active.add(seckillVoucher.getVoucherId());
+                    log.error("秒杀券{}对账异常", seckillVoucher.getVoucherId(), e);
+                }
+            }
+            if (vouchers.size() < BATCH_SIZE) {
+                break;
+            }
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+        drifts.keySet().removeIf(voucherId -> {
+            if (active.contains(voucherId)) {
+                return false;
+            }
+            removeGauges(voucherId);
+            return true;
+        });
+    }
+
+    /**
+     * 对账一张秒杀券
+     *
+     * @return 是否已预热，没有预热的秒杀券不对账
+     */
+    private boolean reconcile(SeckillVoucher seckillVoucher, boolean quiescent) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Long redisStock = seckillStockSegments.remaining(voucherId);
+        if (redisStock == null) {
+            return false;
+        }
+        Long buyers = stringRedisTemplate.opsForSet().size(SeckillStockSegments.orderKey(voucherId));
+        long redisBuyers = buyers == null ? 0 : buyers;
+        long dbStock = seckillVoucher.getStock();
+        long dbOrders = voucherOrderService.query()
+                .eq("voucher_id", voucherId)
+                .ne("status", ORDER_STATUS_CANCELLED)
+                .count();
+
+        long conservationDrift = (redisStock + redisBuyers) - (dbStock + dbOrders);
+        long stockDrift = redisStock - dbStock;
+        long buyerDrift = redisBuyers - dbOrders;
+        AtomicLong[] gauges = drifts.computeIfAbsent(voucherId, this::registerGauges);
+        boolean stable = gauges[1].get() == stockDrift && gauges[2].get() == buyerDrift;
+        gauges[0].set(conservationDrift);
+        gauges[1].set(stockDrift);
+        gauges[2].set(buyerDrift);
+        if (conservationDrift != 0 || (quiescent && (stockDrift != 0 || buyerDrift != 0))) {
+            log.warn("秒杀券{}对账不一致：Redis库存{}，已下单用户{}，数据库库存{}，订单{}",
+                    voucherId, redisStock, redisBuyers, dbStock, dbOrders);
+        }
+        if (repair && quiescent && stable && (stockDrift != 0 || buyerDrift != 0 || conservationDrift != 0)) {
+            repair(voucherId, redisStock, stockDrift, buyerDrift != 0 || conservationDrift != 0);
+        }
+        return true;
+    }
+
+    /**
+     * 修复Redis库存和已下单用户，同一张秒杀券同时只有一个节点修复
+     *
+     * @param voucherId
+     * @param redisStock   对账时读到的Redis库存
+     * @param stockDrift   库存差值
+     * @param repairBuyers 是否修复已下单用户
+     */
+    private void repair(Long voucherId, long redisStock, long stockDrift, boolean repairBuyers) {
+        RLock lock = redissonClient.getLock(SECKILL_RECONCILE_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            // 其他节点正在修复
+            return;
+        }
+        try {
+            if (repairBuyers) {
+                repairBuyers(voucherId);
+            }
+            if (stockDrift == 0) {
+                return;
+            }
+            // 库存仍是对账时读到的值才修复，修正量分摊到所有分段
+            Long repaired = stringRedisTemplate.execute(REPAIR_SCRIPT, seckillStockSegments.stockKeys(voucherId),
+                    String.valueOf(redisStock), String.valueOf(-stockDrift));
+            if (repaired == null || repaired == 0L) {
+                log.info("秒杀券{}库存已变化，跳过本次修复", voucherId);
+                return;
+            }
+            if (stockDrift < 0) {
+                seckillStockGate.replenish(voucherId);
+            }
+            log.warn("秒杀券{}修复Redis库存：{}", voucherId, -stockDrift);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 修复已下单用户集合：SSCAN集合与数据库比对，再按user_id分页遍历订单与集合比对
+     *
+     * @param voucherId
+     */
+    private void repairBuyers(Long voucherId) {
+        String key = SeckillStockSegments.orderKey(voucherId);
+        // Redis中有、数据库中没有的用户：订单丢失，移除后用户可以重新下单
+        List<String> removed = new ArrayList<>();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, ScanOptions.scanOptions().count(BATCH_SIZE).build())) {
+            List<String> chunk = new ArrayList<>(BATCH_SIZE);
+            while (cursor.hasNext()) {
+                chunk.add(cursor.next());
+                if (chunk.size() == BATCH_SIZE || !cursor.hasNext()) {
+                    Set<String> exists = voucherOrderService.query()
+                            .select("user_id")
+                            .eq("voucher_id", voucherId)
+                            .ne("status", ORDER_STATUS_CANCELLED)
+                            .in("user_id", chunk)
+                            .list()
+                            .stream()
+                            .map(order -> order.getUserId().toString())
+                            .collect(Collectors.toSet());
+                    chunk.stream().filter(userId -> !exists.contains(userId)).forEach(removed::add);
+                    chunk.clear();
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("扫描已下单用户失败", e);
+        }
+        if (!removed.isEmpty()) {
+            stringRedisTemplate.opsForSet().remove(key, removed.toArray());
+            log.warn("秒杀券{}移除没有订单的用户{}个", voucherId, removed.size());
+        }
+        // 数据库中有、Redis中没有的用户：补充到集合中，保证一人一单
+        long lastUserId = 0;
+        int added = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .ne("status", ORDER_STATUS_CANCELLED)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("limit " + BATCH_SIZE)
+                    .list();
+            if (CollectionUtil.isEmpty(orders)) {
+                break;
+            }
+            List<String> userIds = orders.stream().map(order -> order.getUserId().toString()).collect(Collectors.toList());
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String userId : userIds) {
+                    connection.sIsMember(rawKey, userId.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            Set<String> missing = new HashSet<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                if (!Boolean.TRUE.equals(members.get(i))) {
+                    missing.add(userIds.get(i));
+                }
+            }
+            if (!missing.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(key, missing.toArray(new String[0]));
+                added += missing.size();
+            }
+            if (orders.size() < BATCH_SIZE) {
+                break;
+            }
+            lastUserId = orders.get(orders.size() - 1).getUserId();
+        }
+        if (added > 0) {
+            log.warn("秒杀券{}补充已下单用户{}个", voucherId, added);
+        }
+    }
+
+    /**
+     * 订单队列是否已消费完：消费者组没有pending消息，且已经读到了最新的消息
+     *
+     * @return
+     */
+    private boolean isOrderStreamDrained() {
+        try {
+            StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(SECKILL_ORDER_STREAM);
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM);
+            return groups.stream()
+                    .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                    .anyMatch(group -> group.pendingCount() == 0
+                            && stream.lastGeneratedId().equals(group.lastDeliveredId()));
+        } catch (Exception e) {
+            log.error("查询订单队列状态失败", e);
+            return false;
+        }
+    }
+
+    private AtomicLong[] registerGauges(Long voucherId) {
+        Tags tags = Tags.of("voucherId", voucherId.toString());
+        AtomicLong[] values = new AtomicLong[GAUGE_NAMES.length];
+        for (int i = 0; i < GAUGE_NAMES.length; i++) {
+            values[i] = meterRegistry.gauge(GAUGE_NAMES[i], tags, new AtomicLong());
+        }
+        return values;
+    }
+
+    private void removeGauges(Long voucherId) {
+        for (String name : GAUGE_NAMES) {
+            Gauge gauge = meterRegistry.find(name).tag("voucherId", voucherId.toString()).gauge();
+            if (gauge != null) {
+                meterRegistry.remove(gauge);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_CANCELLED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀库存分段：超热点秒杀券的库存拆分成K段（seckill:stock:{id}:k），
+ * 秒杀脚本从随机分段开始依次尝试，扣减分散到多个key上。分段数为1时使用seckill:stock:{id}。
+ * <p>
+ * 同一张秒杀券的库存、已下单用户、秒杀时间key都带有hash tag {id}，集群模式下位于同一个slot，可以在一个脚本中操作
+ */
+@Component
+public class SeckillStockSegments {
+
+    /**
+     * 秒杀券分段数保存在seckill:voucher:{id}中的字段
+     */
+    public static final String SEGMENTS_FIELD = "segments";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 分段数创建后不再变化，缓存在本地
+     */
+    private final Map<Long, Integer> segmentsCache = new ConcurrentHashMap<>();
+
+    public SeckillStockSegments(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 初始化分段库存，余数分摊到前面的分段
+     *
+     * @param voucherId
+     * @param stock
+     * @param segments
+     * @param overwrite 是否覆盖已有库存，false时只写入不存在的分段
+     */
+    public void init(Long voucherId, int stock, Integer segments, boolean overwrite) {
+        int k = segments == null || segments < 1 ? 1 : segments;
+        for (int i = 0; i < k; i++) {
+            String share = String.valueOf(stock / k + (i < stock % k ? 1 : 0));
+            if (overwrite) {
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, k, i), share);
+            } else {
+                stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, k, i), share);
+            }
+        }
+        stringRedisTemplate.opsForHash().put(voucherKey(voucherId), SEGMENTS_FIELD, String.valueOf(k));
+        segmentsCache.put(voucherId, k);
+    }
+
+    /**
+     * 获取秒杀券的分段数
+     *
+     * @param voucherId
+     * @return
+     */
+    public int segments(Long voucherId) {
+        Integer k = segmentsCache.get(voucherId);
+        if (k != null) {
+            return k;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(voucherKey(voucherId), SEGMENTS_FIELD);
+        if (value == null || StrUtil.isBlank(value.toString())) {
+            // 未预热或者是没有分段的旧数据，不缓存
+            return 1;
+        }
+        k = Integer.valueOf(value.toString());
+        segmentsCache.put(voucherId, k);
+        return k;
+    }
+
+    /**
+     * 随机选择一个分段
+     *
+     * @param segments
+     * @return
+     */
+    public int pick(int segments) {
+        return segments == 1 ? 0 : ThreadLocalRandom.current().nextInt(segments);
+    }
+
+    /**
+     * 从随机分段开始排列的所有分段库存key，秒杀脚本按这个顺序尝试
+     *
+     * @param voucherId
+     * @return
+     */
+    public List<String> shuffledStockKeys(Long voucherId) {
+        int segments = segments(voucherId);
+        int start = pick(segments);
+        List<String> keys = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            keys.add(stockKey(voucherId, segments, (start + i) % segments));
+        }
+        return keys;
+    }
+
+    /**
+     * 分段库存key
+     *
+     * @param voucherId
+     * @param segments  分段数
+     * @param k         分段下标
+     * @return
+     */
+    public String stockKey(Long voucherId, int segments, int k) {
+        return segments == 1 ? SECKILL_STOCK_KEY + tag(voucherId) : SECKILL_STOCK_KEY + tag(voucherId) + ":" + k;
+    }
+
+    /**
+     * 已下单用户集合key
+     *
+     * @param voucherId
+     * @return
+     */
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + tag(voucherId);
+    }
+
+    /**
+     * 已回滚Redis库存的取消订单集合key，保证同一个订单只归还一次
+     *
+     * @param voucherId
+     * @return
+     */
+    public static String cancelledKey(Long voucherId) {
+        return SECKILL_CANCELLED_KEY + tag(voucherId);
+    }
+
+    /**
+     * 秒杀时间、分段数key
+     *
+     * @param voucherId
+     * @return
+     */
+    public static String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + tag(voucherId);
+    }
+
+    private static String tag(Long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    /**
+     * 秒杀券所有分段的库存key
+     *
+     * @param voucherId
+     * @return
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int segments = segments(voucherId);
+        List<String> keys = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            keys.add(stockKey(voucherId, segments, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 汇总所有分段的剩余库存，未预热返回null
+     *
+     * @param voucherId
+     * @return
+     */
+    public Long remaining(Long voucherId) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys(voucherId));
+        if (values == null) {
+            return null;
+        }
+        long total = 0;
+        boolean found = false;
+        for (String value : values) {
+            if (value != null) {
+                total += Long.parseLong(value);
+                found = true;
+            }
+        }
+        return found ? total : null;
+    }
+}
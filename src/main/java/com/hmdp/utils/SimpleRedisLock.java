@@ -9,6 +9,8 @@ import org.springframework.data.redis.core.script.DefaultRedisScript;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
 /**
  * 基于Redis实现非阻塞式分布式锁
  */
@@ -30,11 +32,21 @@ public class SimpleRedisLock implements ILock {
      */
     private String name;
 
+    /**
+     * 阻塞式获取锁时用于等待锁释放的通知
+     */
+    private LockReleaseSubscriber releaseSubscriber;
+
+    /**
+     * 阻塞式获取锁时没有指定过期时间，使用的默认过期时间（秒）
+     */
+    private static final long DEFAULT_LEASE_SECONDS = 30L;
+
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
 
     static {
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock_notify.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
     }
 
@@ -43,6 +55,11 @@ public class SimpleRedisLock implements ILock {
         this.name = name;
     }
 
+    public SimpleRedisLock(StringRedisTemplate stringRedisTemplate, LockReleaseSubscriber releaseSubscriber, String name) {
+        this(stringRedisTemplate, name);
+        this.releaseSubscriber = releaseSubscriber;
+    }
+
     @Override
     public boolean tryLock(long timeoutSec) {
         // 获取锁
@@ -58,6 +75,34 @@ public class SimpleRedisLock implements ILock {
         return BooleanUtil.isTrue(isSuccess);
     }
 
+    /**
+     * 阻塞式：在waitTime内尝试获取锁，获取失败时等待锁释放的通知，需要用带LockReleaseSubscriber的构造函数创建
+     *
+     * @param waitTime  最长等待时间
+     * @param leaseTime 过期时间，小于等于0时使用默认值
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        if (releaseSubscriber == null) {
+            throw new IllegalStateException("阻塞式获取锁需要LockReleaseSubscriber");
+        }
+        String key = KEY_PREFIX + name;
+        String threadId = ID_PREFIX + Thread.currentThread().getId();
+        long leaseMillis = leaseTime > 0 ? unit.toMillis(leaseTime) : TimeUnit.SECONDS.toMillis(DEFAULT_LEASE_SECONDS);
+        return releaseSubscriber.acquire(key, () -> {
+            Boolean isSuccess = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(key, threadId, leaseMillis, TimeUnit.MILLISECONDS);
+            if (BooleanUtil.isTrue(isSuccess)) {
+                return null;
+            }
+            // 获取失败，返回锁的剩余过期时间；锁刚好被释放（-2）时立即重试
+            Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+            return ttl == null || ttl == -2L ? 0L : ttl;
+        }, waitTime, unit);
+    }
+
     @Override
     public void unlock() {
         String key = KEY_PREFIX + name;
@@ -67,7 +112,7 @@ public class SimpleRedisLock implements ILock {
         stringRedisTemplate.execute(
                 UNLOCK_SCRIPT,
                 Collections.singletonList(key),
-                Collections.singletonList(threadId));
+                threadId, LOCK_RELEASED_CHANNEL + key);
     }
 
     /*@Override
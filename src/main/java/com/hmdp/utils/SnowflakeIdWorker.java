@@ -0,0 +1,243 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 本地生成ID，不访问Redis：高32位与RedisIdWorker相同是时间戳（秒），低32位是10位worker id + 22位序列号。
+ * <p>
+ * 每个节点启动时从Redis租用一个worker id，由独立的线程定时续期，租约快到期仍未续期成功时拒绝生成ID，
+ * 避免租约过期后其他节点租到同一个worker id生成重复的ID；时钟回拨时继续使用上一次的时间戳，借用序列号，
+ * 当前秒的序列号用完时借用下一秒，最多超前maxBorrowSeconds，超过时等待时钟追上。
+ * 与RedisIdWorker生成的ID的低32位含义不同，所有节点必须使用同一种方式
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.snowflake.enabled", havingValue = "true")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final int WORKER_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 22;
+
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * 租约剩余时间少于这个值时不再生成ID，留出时钟误差和网络延迟的余量
+     */
+    private static final long LEASE_MARGIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 当前秒的序列号用完时，最多借用到超前当前时间多少秒
+     */
+    private final long maxBorrowSeconds;
+
+    /**
+     * 租约持有者标识
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    /**
+     * 租用的worker id，租约丢失时为-1
+     */
+    private volatile int workerId = -1;
+
+    /**
+     * 租约的过期时间（System.nanoTime），以发出租用、续期命令之前的时间计算，不会晚于Redis中的实际过期时间
+     */
+    private volatile long leaseExpiresAt;
+
+    /**
+     * 续期间隔（毫秒）
+     */
+    private final long heartbeatInterval;
+
+    /**
+     * 续期线程，不使用共享的@Scheduled线程，避免被其他定时任务阻塞导致租约过期
+     */
+    private final ScheduledExecutorService heartbeatScheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("snowflake-heartbeat-", true));
+
+    /**
+     * 最后一次使用的时间戳（秒），只在持有监视器时修改；续期线程不加锁读取，
+     * 不会因为nextId等待时钟追上时持有监视器而阻塞续期
+     */
+    private volatile long lastSecond;
+
+    private long sequence;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate,
+                             @Value("${hmdp.id.snowflake.max-borrow-seconds:5}") long maxBorrowSeconds,
+                             @Value("${hmdp.id.snowflake.heartbeat-interval:10000}") long heartbeatInterval) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.maxBorrowSeconds = maxBorrowSeconds;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    @PostConstruct
+    private void init() {
+        acquireWorkerId();
+        heartbeatScheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        int worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("没有可用的worker id");
+        }
+        if (System.nanoTime() - leaseExpiresAt > -LEASE_MARGIN_NANOS) {
+            // 续期迟迟没有成功，租约可能已经被其他节点拿到
+            throw new IllegalStateException("worker id租约即将过期：" + worker);
+        }
+        long now = RedisIdWorker.nowSecond();
+        if (now > lastSecond) {
+            lastSecond = now;
+            sequence = 0;
+        } else if (++sequence > MAX_SEQUENCE) {
+            // 当前秒（或时钟回拨后沿用的秒）的序列号用完，借用下一秒，超前太多时等待时钟追上
+            while (lastSecond + 1 > RedisIdWorker.nowSecond() + maxBorrowSeconds) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            lastSecond++;
+            sequence = 0;
+        }
+        return (lastSecond - RedisIdWorker.BEGIN_TIMESTAMP) << 32 | (long) worker << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 续期租约，同时记录最后使用的时间戳；租约丢失时重新租用
+     */
+    private void heartbeat() {
+        // 异常不能抛出，否则后续不会再执行
+        try {
+            int worker = workerId;
+            if (worker >= 0) {
+                long start = System.nanoTime();
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Arrays.asList(ID_WORKER_KEY + worker, ID_WORKER_LAST_KEY + worker),
+                        token, ID_WORKER_TTL.toString(), String.valueOf(lastSecond));
+                if (renewed != null && renewed == 1L) {
+                    leaseExpiresAt = start + TimeUnit.SECONDS.toNanos(ID_WORKER_TTL);
+                    return;
+                }
+                log.error("worker id租约丢失：{}", worker);
+                workerId = -1;
+            }
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("worker id续期或租用失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void release() {
+        heartbeatScheduler.shutdownNow();
+        int worker = workerId;
+        if (worker < 0) {
+            return;
+        }
+        workerId = -1;
+        stringRedisTemplate.opsForValue().set(ID_WORKER_LAST_KEY + worker, String.valueOf(lastSecond));
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + worker), token);
+    }
+
+    /**
+     * 从随机位置开始找一个空闲的worker id，访问Redis时不持有监视器，租用成功后才加锁更新状态
+     */
+    private void acquireWorkerId() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int worker = (start + i) & MAX_WORKER_ID;
+            long requestedAt = System.nanoTime();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + worker, token, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(ok)) {
+                // 上一个持有者最后使用的时间戳之后才能继续生成，记录的值最多落后一个租约周期
+                String last = stringRedisTemplate.opsForValue().get(ID_WORKER_LAST_KEY + worker);
+                long lastUsed = StrUtil.isBlank(last) ? 0L : Long.parseLong(last) + ID_WORKER_TTL;
+                synchronized (this) {
+                    lastSecond = Math.max(RedisIdWorker.nowSecond(), lastUsed);
+                    sequence = 0;
+                    leaseExpiresAt = requestedAt + TimeUnit.SECONDS.toNanos(ID_WORKER_TTL);
+                    workerId = worker;
+                }
+                log.info("租用worker id：{}", worker);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    /**
+     * 解析ID，用于排查问题
+     *
+     * @param id
+     * @return
+     */
+    public static IdInfo decode(long id) {
+        IdInfo info = new IdInfo();
+        info.setTime(LocalDateTime.ofEpochSecond((id >>> 32) + RedisIdWorker.BEGIN_TIMESTAMP, 0, ZoneOffset.UTC));
+        info.setLowBits(id & 0xFFFFFFFFL);
+        info.setWorkerId((id >>> SEQUENCE_BITS) & MAX_WORKER_ID);
+        info.setSequence(id & MAX_SEQUENCE);
+        return info;
+    }
+
+    @Data
+    public static class IdInfo {
+        /**
+         * 生成时间（本地时间）
+         */
+        private LocalDateTime time;
+        /**
+         * 低32位，RedisIdWorker生成的ID为当天的序列号
+         */
+        private long lowBits;
+        private long workerId;
+        private long sequence;
+    }
+}
@@ -0,0 +1,10 @@
+-- 布隆过滤器新增元素：KEYS[1]为位图key，KEYS[2]为重建中的临时位图key
+-- ARGV为要置1的位置；正在重建时同时写入临时位图，替换后不会丢失
+local rebuilding = redis.call('EXISTS', KEYS[2]) == 1
+for i = 1, #ARGV do
+    redis.call('SETBIT', KEYS[1], ARGV[i], 1)
+    if rebuilding then
+        redis.call('SETBIT', KEYS[2], ARGV[i], 1)
+    end
+end
+return 1
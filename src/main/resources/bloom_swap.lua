@@ -0,0 +1,8 @@
+-- 布隆过滤器重建完成：KEYS[1]为位图key，KEYS[2]为临时位图key
+-- 临时位图已经过期（重建超时）时返回0，否则替换位图并去掉过期时间，返回1
+if (redis.call('EXISTS', KEYS[2]) == 0) then
+    return 0
+end
+redis.call('RENAME', KEYS[2], KEYS[1])
+redis.call('PERSIST', KEYS[1])
+return 1
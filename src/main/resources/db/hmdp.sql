@@ -1261,6 +1261,16 @@ INSERT INTO `tb_voucher` VALUES (1, 1, '50元代金券', '周一至周日均可
 
 -- ----------------------------
 -- Table structure for tb_voucher_order
+-- 一人一单由唯一索引uk_voucher_user(voucher_id, user_id, live)保证，live为虚拟生成列，已取消的订单为NULL不参与唯一约束，
+-- 生成列需要MySQL 5.7及以上版本（本文件导出自5.6，5.6上无法创建该表）。
+-- 已有数据库的迁移步骤：
+-- 1. 找出同一用户同一张券的多个未取消订单，只保留一个，其余取消（status = 4）：
+--    SELECT voucher_id, user_id, COUNT(*) FROM tb_voucher_order WHERE status <> 4 GROUP BY voucher_id, user_id HAVING COUNT(*) > 1;
+-- 2. 添加生成列和唯一索引（旧的idx_voucher_user不存在时去掉DROP INDEX）：
+--    ALTER TABLE `tb_voucher_order`
+--      ADD COLUMN `live` tinyint(1) GENERATED ALWAYS AS (if(`status` = 4, NULL, 1)) VIRTUAL COMMENT '未取消为1，已取消为NULL，用于一人一单的唯一索引',
+--      DROP INDEX `idx_voucher_user`,
+--      ADD UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`, `live`) USING BTREE;
 -- ----------------------------
 DROP TABLE IF EXISTS `tb_voucher_order`;
 CREATE TABLE `tb_voucher_order`  (
@@ -1274,7 +1284,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `live` tinyint(1) GENERATED ALWAYS AS (if(`status` = 4, NULL, 1)) VIRTUAL COMMENT '未取消为1，已取消为NULL，用于一人一单的唯一索引',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_voucher_user`(`voucher_id`, `user_id`, `live`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
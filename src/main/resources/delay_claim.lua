@@ -0,0 +1,9 @@
+-- 延迟队列领取到期任务：取出到期的成员并把分数改为租约到期时间，
+-- 处理成功后由调用方删除；节点宕机没有删除的任务在租约到期后会被重新领取
+-- KEYS[1]：延迟队列key
+-- ARGV[1]：当前时间戳（毫秒），ARGV[2]：最多领取数量，ARGV[3]：租约到期时间戳（毫秒）
+local members = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+for i = 1, #members do
+    redis.call('ZADD', KEYS[1], ARGV[3], members[i])
+end
+return members
@@ -0,0 +1,9 @@
+-- 续期worker id：KEYS[1]为租约key，KEYS[2]为最后使用的时间戳key
+-- ARGV[1]为持有者标识，ARGV[2]为租约过期时间（秒），ARGV[3]为最后使用的时间戳
+if (redis.call('GET', KEYS[1]) ~= ARGV[1]) then
+    -- 租约已经丢失
+    return 0
+end
+redis.call('EXPIRE', KEYS[1], ARGV[2])
+redis.call('SET', KEYS[2], ARGV[3])
+return 1
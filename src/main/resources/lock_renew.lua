@@ -0,0 +1,7 @@
+-- KEYS[1]为锁key，ARGV[1]为持有者标识，ARGV[2]为过期时间（毫秒）
+-- 仍然持有时续期，返回1；否则返回0
+if (redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1) then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
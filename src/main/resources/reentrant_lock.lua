@@ -0,0 +1,8 @@
+-- KEYS[1]为锁key，ARGV[1]为持有者标识，ARGV[2]为过期时间（毫秒）
+-- 锁不存在或者自己持有时重入次数+1并重置过期时间，返回nil；否则返回锁的剩余过期时间
+if (redis.call('EXISTS', KEYS[1]) == 0 or redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1) then
+    redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return nil
+end
+return redis.call('PTTL', KEYS[1])
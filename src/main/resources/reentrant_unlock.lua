@@ -0,0 +1,14 @@
+-- KEYS[1]为锁key，ARGV[1]为持有者标识，ARGV[2]为过期时间（毫秒），ARGV[3]为释放通知的频道
+-- 不是自己持有返回nil；重入次数-1后仍大于0时重置过期时间，返回1；否则删除锁并发布释放通知，返回0
+if (redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0) then
+    return nil
+end
+local count = redis.call('HINCRBY', KEYS[1], ARGV[1], -1)
+if (count > 0) then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 1
+end
+redis.call('DEL', KEYS[1])
+-- 通知等待这把锁的线程
+redis.call('PUBLISH', ARGV[3], '0')
+return 0
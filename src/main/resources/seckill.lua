@@ -0,0 +1,47 @@
+-- 秒杀资格判断：在一次往返中原子完成秒杀时间、库存、一人一单的校验，库存分段时在同一个脚本中依次尝试所有分段
+-- 同一张秒杀券的key都带有相同的hash tag（{voucherId}），集群模式下位于同一个slot；
+-- 订单消息队列是所有秒杀券共用的，由调用方在取得资格后再生成订单ID、发送订单消息
+-- KEYS[1]：已下单用户集合key，KEYS[2]：秒杀时间key（hash：begin、end），KEYS[3...]：库存分段key，按尝试顺序排列
+-- ARGV[1]：用户ID，ARGV[2]：当前时间戳（毫秒）
+-- 返回值：0 有购买资格（已扣减库存、记录下单用户）；1 库存不足；2 重复下单；3 秒杀未开始；4 秒杀已结束；5 秒杀券未预热到Redis
+
+-- 判断秒杀券是否已预热
+local window = redis.call('HMGET', KEYS[2], 'begin', 'end')
+if (window[1] == false or window[2] == false) then
+    return 5
+end
+-- 判断秒杀时间
+local now = tonumber(ARGV[2])
+if (now < tonumber(window[1])) then
+    return 3
+end
+if (now > tonumber(window[2])) then
+    return 4
+end
+-- 找到第一个还有库存的分段
+local stockKey = nil
+local preloaded = false
+for i = 3, #KEYS do
+    local stock = redis.call('GET', KEYS[i])
+    if (stock ~= false) then
+        preloaded = true
+        if (tonumber(stock) > 0) then
+            stockKey = KEYS[i]
+            break
+        end
+    end
+end
+if (not preloaded) then
+    return 5
+end
+if (stockKey == nil) then
+    return 1
+end
+-- 判断用户是否下过单
+if (redis.call('SISMEMBER', KEYS[1], ARGV[1]) == 1) then
+    return 2
+end
+-- 扣减库存，记录下单用户
+redis.call('INCRBY', stockKey, -1)
+redis.call('SADD', KEYS[1], ARGV[1])
+return 0
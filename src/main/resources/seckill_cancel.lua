@@ -0,0 +1,20 @@
+-- 取消订单后回滚Redis：归还库存并移除已下单用户，按订单ID幂等，数据库已取消但回滚失败时可以反复重试
+-- KEYS[1]：库存key，KEYS[2]：已下单用户集合key，KEYS[3]：已回滚的取消订单集合key，KEYS[4]：秒杀券信息key
+-- ARGV[1]：用户ID，ARGV[2]：订单ID，ARGV[3]：支付超时时间（毫秒）
+-- 返回值：1 已归还库存；0 已经回滚过，或者秒杀券没有预热到Redis（数据库库存预热时会带上）
+if (redis.call('SADD', KEYS[3], ARGV[2]) == 0) then
+    return 0
+end
+-- 秒杀结束再过一个支付超时时间后不会再有订单取消，集合随之过期；没有预热时只保留一个支付超时时间
+local endTime = redis.call('HGET', KEYS[4], 'end')
+if (endTime) then
+    redis.call('PEXPIREAT', KEYS[3], tonumber(endTime) + tonumber(ARGV[3]))
+else
+    redis.call('PEXPIRE', KEYS[3], ARGV[3])
+end
+redis.call('SREM', KEYS[2], ARGV[1])
+if (redis.call('EXISTS', KEYS[1]) == 0) then
+    return 0
+end
+redis.call('INCRBY', KEYS[1], 1)
+return 1
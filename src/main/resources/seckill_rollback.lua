@@ -0,0 +1,12 @@
+-- 秒杀资格回滚：移除已下单用户并归还库存
+-- KEYS[1]：库存key，KEYS[2]：已下单用户集合key
+-- ARGV[1]：用户ID，ARGV[2]：是否归还库存，'0'表示只移除用户（数据库已经没有库存时）
+-- 返回值：1 已归还库存；0 用户不在集合中或者不归还库存
+if (redis.call('SREM', KEYS[2], ARGV[1]) == 0) then
+    return 0
+end
+if (ARGV[2] == '0') then
+    return 0
+end
+redis.call('INCRBY', KEYS[1], 1)
+return 1
@@ -0,0 +1,39 @@
+-- 秒杀库存修复：所有分段的库存之和仍等于对账时读到的值才修改，否则说明库存已经变化（其他节点已修复或有新的扣减），放弃本次修复
+-- KEYS[1...]：所有库存分段key
+-- ARGV[1]：对账时读到的库存总数，ARGV[2]：修正量，正数平均加到各分段，负数依次从有库存的分段扣减
+-- 返回值：1 已修复；0 库存已变化
+local total = 0
+for i = 1, #KEYS do
+    total = total + tonumber(redis.call('GET', KEYS[i]) or '0')
+end
+if (total ~= tonumber(ARGV[1])) then
+    return 0
+end
+local delta = tonumber(ARGV[2])
+if (delta > 0) then
+    local share = math.floor(delta / #KEYS)
+    local rest = delta % #KEYS
+    for i = 1, #KEYS do
+        local add = share
+        if (i <= rest) then
+            add = add + 1
+        end
+        if (add > 0) then
+            redis.call('INCRBY', KEYS[i], add)
+        end
+    end
+else
+    local need = -delta
+    for i = 1, #KEYS do
+        if (need == 0) then
+            break
+        end
+        local stock = tonumber(redis.call('GET', KEYS[i]) or '0')
+        local take = math.min(stock, need)
+        if (take > 0) then
+            redis.call('INCRBY', KEYS[i], -take)
+            need = need - take
+        end
+    end
+end
+return 1
@@ -0,0 +1,8 @@
+-- 释放锁并通知等待这把锁的线程，只用于支持阻塞式获取锁的SimpleRedisLock
+-- KEYS[1]为锁key，ARGV[1]为持有者标识，ARGV[2]为释放通知的频道
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+    local deleted = redis.call('DEL', KEYS[1])
+    redis.call('PUBLISH', ARGV[2], '0')
+    return deleted
+end
+return 0
@@ -1,19 +1,32 @@
 package com.hmdp;
 
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockSegments;
+import com.hmdp.utils.UserHolder;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -27,6 +40,12 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
+
     @Test
     public void testSaveShop() {
         Shop shop = shopService.getById(1L);
@@ -65,4 +84,70 @@ class HmDianPingApplicationTests {
         System.out.println("(end - begin) = " + (end - begin));
     }
 
+    /**
+     * 对比同步下单和异步下单：同步下单每个请求占用一个线程直到Redis返回，
+     * 异步下单只用一个线程发起全部请求。每个请求使用不同的用户，需要先预热一张秒杀券。
+     * 两种方式成功下单的数量都必须等于Redis库存的减少量，订单ID不能重复
+     */
+    @Test
+    public void testSeckillSyncVsAsync() throws InterruptedException {
+        long voucherId = 10L;
+        int requests = 3000;
+        Long initialStock = seckillStockSegments.remaining(voucherId);
+        assertNotNull(initialStock, "秒杀券没有预热到Redis");
+
+        // 同步下单：50个线程模拟Tomcat线程池
+        List<Result> syncResults = Collections.synchronizedList(new ArrayList<>(requests));
+        ExecutorService tomcat = Executors.newFixedThreadPool(50);
+        CountDownLatch latch = new CountDownLatch(requests);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            long userId = 100000L + i;
+            tomcat.submit(() -> {
+                UserHolder.saveUser(user(userId));
+                try {
+                    syncResults.add(voucherOrderService.seckillVoucher(voucherId));
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        System.out.println("sync (end - begin) = " + (System.currentTimeMillis() - begin));
+        tomcat.shutdown();
+        Long afterSync = seckillStockSegments.remaining(voucherId);
+        assertSeckillResults(syncResults, initialStock - afterSync);
+
+        // 异步下单：当前线程发起全部请求，等待所有结果返回
+        List<CompletableFuture<Result>> futures = new ArrayList<>(requests);
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++) {
+            UserHolder.saveUser(user(200000L + i));
+            futures.add(voucherOrderService.seckillVoucherAsync(voucherId));
+        }
+        UserHolder.removeUser();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        System.out.println("async (end - begin) = " + (System.currentTimeMillis() - begin));
+        List<Result> asyncResults = futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        assertSeckillResults(asyncResults, afterSync - seckillStockSegments.remaining(voucherId));
+    }
+
+    /**
+     * 成功的数量等于库存减少量，且订单ID不重复
+     */
+    private static void assertSeckillResults(List<Result> results, long consumedStock) {
+        List<Object> orderIds = results.stream()
+                .filter(Result::getSuccess)
+                .map(Result::getData)
+                .collect(Collectors.toList());
+        assertEquals(consumedStock, orderIds.size());
+        assertEquals(orderIds.size(), new HashSet<>(orderIds).size());
+    }
+
+    private static UserDTO user(long id) {
+        UserDTO user = new UserDTO();
+        user.setId(id);
+        return user;
+    }
 }
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(0);
+
+    @Data
+    static class Item {
+        private Long id;
+        private String name;
+    }
+
+    @Data
+    static class Shop {
+        private Long id;
+        private String name;
+        private int score;
+        private BigDecimal price;
+        private LocalDateTime updateTime;
+        private Item owner;
+        private List<Item> items;
+        private Map<String, Integer> tags;
+    }
+
+    @Data
+    static class OtherShop {
+        private Long id;
+        private String name;
+    }
+
+    private static Item item(long id, String name) {
+        Item item = new Item();
+        item.setId(id);
+        item.setName(name);
+        return item;
+    }
+
+    private static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setScore(37);
+        shop.setPrice(new BigDecimal("80.50"));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 1, 12, 30, 15, 123000000));
+        shop.setOwner(item(7L, "owner"));
+        shop.setItems(Arrays.asList(item(1L, "a"), item(2L, "b")));
+        Map<String, Integer> tags = new LinkedHashMap<>();
+        tags.put("x", 1);
+        tags.put("y", 2);
+        shop.setTags(tags);
+        return shop;
+    }
+
+    /**
+     * null可以写入，任何类型都能按null解码
+     */
+    @Test
+    void testNull() {
+        byte[] bytes = codec.encode(null);
+        assertTrue(codec.supports(bytes, Shop.class));
+        assertTrue(codec.supports(bytes, String.class));
+        assertNull(codec.decode(bytes, Shop.class));
+    }
+
+    /**
+     * 空字符串、空集合和字段全为空的对象
+     */
+    @Test
+    void testEmpty() {
+        assertEquals("", codec.decode(codec.encode(""), String.class));
+
+        Shop empty = new Shop();
+        assertEquals(empty, codec.decode(codec.encode(empty), Shop.class));
+
+        Shop shop = new Shop();
+        shop.setItems(new ArrayList<>());
+        shop.setTags(Collections.emptyMap());
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertTrue(decoded.getItems().isEmpty());
+        assertTrue(decoded.getTags().isEmpty());
+        assertNull(decoded.getOwner());
+    }
+
+    /**
+     * 嵌套对象和集合字段
+     */
+    @Test
+    void testNestedAndCollectionFields() {
+        Shop shop = shop();
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop, decoded);
+        assertEquals(Item.class, decoded.getItems().get(0).getClass());
+    }
+
+    @Test
+    void testLogical() {
+        LocalDateTime expireTime = LocalDateTime.of(2030, 1, 1, 0, 0, 0);
+        Shop shop = shop();
+        byte[] bytes = codec.encodeLogical(shop, expireTime);
+        assertTrue(codec.supports(bytes, Shop.class));
+        RedisData redisData = codec.decodeLogical(bytes, Shop.class);
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(shop, redisData.getData());
+    }
+
+    /**
+     * 类型字段不同或不是本编码写入的数据不能解码
+     */
+    @Test
+    void testFingerprintMismatch() {
+        byte[] bytes = codec.encode(shop());
+        assertFalse(codec.supports(bytes, OtherShop.class));
+        assertFalse(codec.supports(bytes, String.class));
+        assertFalse(codec.supports(codec.encode(1L), Integer.class));
+
+        byte[] json = new JsonCacheCodec().encode(shop());
+        assertFalse(codec.supports(json, Shop.class));
+        assertFalse(codec.supports(new byte[]{(byte) 0xB7}, Shop.class));
+    }
+
+    /**
+     * 超过阈值时压缩，压缩与不压缩都能解码
+     */
+    @Test
+    void testCompressed() {
+        Shop shop = shop();
+        shop.setName(StrUtil.repeat("茶餐厅", 200));
+
+        byte[] plain = codec.encode(shop);
+        assertEquals(0, plain[1] & 1);
+
+        BinaryCacheCodec compressing = new BinaryCacheCodec(64);
+        byte[] compressed = compressing.encode(shop);
+        assertEquals(1, compressed[1] & 1);
+        assertTrue(compressed.length < plain.length);
+        assertEquals(shop, compressing.decode(compressed, Shop.class));
+        // 解码不依赖阈值配置
+        assertEquals(shop, codec.decode(compressed, Shop.class));
+        assertEquals(shop, compressing.decode(plain, Shop.class));
+
+        // 小于阈值不压缩
+        byte[] small = compressing.encode(item(1L, "a"));
+        assertEquals(0, small[1] & 1);
+        assertEquals(item(1L, "a"), compressing.decode(small, Item.class));
+    }
+}
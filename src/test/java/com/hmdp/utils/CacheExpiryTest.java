@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CacheExpiryTest {
+
+    private static CacheClient cacheClient(double jitterRatio, int maxExpiryPerSecond) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        return new CacheClient(new StringRedisTemplate(), new RedisMessageListenerContainer(), meterRegistry,
+                new HotKeyDetector(meterRegistry, 10, 32, 500L, 10000L), executor,
+                false, 10000L, 10L, 200L, false, 10, jitterRatio, maxExpiryPerSecond, 1000L, 0.8, 60L);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    @Test
+    void testHistogram() {
+        CacheExpiryHistogram histogram = new CacheExpiryHistogram();
+        long second = now() + 100;
+        histogram.record(second);
+        histogram.record(second);
+        histogram.record(second + 1);
+        // 超出统计范围的不记录
+        histogram.record(now() - 10);
+        histogram.record(now() + CacheExpiryHistogram.WINDOW_SECONDS + 10);
+
+        assertEquals(2, histogram.count(second));
+        assertEquals(1, histogram.count(second + 1));
+        assertEquals(2, histogram.max());
+        assertEquals(3L, histogram.total());
+        // 一小时后同一个桶的旧数据不算
+        assertEquals(0, histogram.count(second + CacheExpiryHistogram.WINDOW_SECONDS));
+    }
+
+    /**
+     * 过期时间在[ttl, ttl * (1 + ratio)]内随机
+     */
+    @Test
+    void testJitterRange() {
+        CacheClient client = cacheClient(0.1, 0);
+        Set<Long> values = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            long seconds = client.expireSeconds(100L, TimeUnit.SECONDS);
+            assertTrue(seconds >= 100 && seconds <= 110, String.valueOf(seconds));
+            values.add(seconds);
+        }
+        // 确实分散了
+        assertTrue(values.size() > 1);
+        // 没有抖动时原样返回
+        assertEquals(30L, cacheClient(0, 0).expireSeconds(30L, TimeUnit.MINUTES) / 60);
+    }
+
+    /**
+     * 不足一秒的部分向上取整，至少为1秒
+     */
+    @Test
+    void testRoundUp() {
+        CacheClient client = cacheClient(0, 0);
+        assertEquals(1L, client.expireSeconds(1L, TimeUnit.MILLISECONDS));
+        assertEquals(2L, client.expireSeconds(1500L, TimeUnit.MILLISECONDS));
+        assertEquals(1L, client.expireSeconds(0L, TimeUnit.SECONDS));
+        assertEquals(60L, client.expireSeconds(1L, TimeUnit.MINUTES));
+    }
+
+    /**
+     * 开启每秒上限后，选中的一秒已满时在随机范围内向后寻找空闲的一秒
+     */
+    @Test
+    void testMaxExpiryPerSecond() {
+        CacheClient client = cacheClient(0.1, 1);
+        // 随机范围[100, 110]共11秒，每秒最多1个
+        for (int i = 0; i < 11; i++) {
+            client.expireSeconds(100L, TimeUnit.SECONDS);
+        }
+        int max = 0;
+        for (int c : client.expiryDensity()) {
+            max = Math.max(max, c);
+        }
+        assertEquals(1, max);
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HotKeyDetectorTest {
+
+    /**
+     * 不抽样，K=4，QPS阈值10，老化周期1秒：计数达到20判定为热点
+     */
+    private final HotKeyDetector detector = new HotKeyDetector(new SimpleMeterRegistry(), 1, 4, 10L, 1000L);
+
+    private void record(String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+
+    @Test
+    void testHotKey() {
+        record("cache:shop:1", 1000);
+        record("cache:shop:2", 5);
+        detector.decay();
+
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+        assertEquals("cache:shop:1", detector.topKeys().get(0).getKey());
+        // 估算次数不会小于实际次数
+        assertTrue(detector.topKeys().get(0).getValue() >= 1000);
+        // 1000次 / 2 / 1秒
+        assertEquals(500L, detector.topKeyQps().get("cache:shop:1"));
+    }
+
+    /**
+     * 只保留访问最多的K个key
+     */
+    @Test
+    void testTopK() {
+        for (int i = 1; i <= 10; i++) {
+            record("cache:shop:" + i, i * 10);
+        }
+        detector.decay();
+
+        List<String> top = detector.topKeys().stream().map(Map.Entry::getKey).collect(Collectors.toList());
+        assertEquals(4, top.size());
+        assertEquals("cache:shop:10", top.get(0));
+        assertTrue(top.containsAll(Arrays.asList("cache:shop:7", "cache:shop:8", "cache:shop:9")));
+    }
+
+    /**
+     * 不再访问的key每个周期计数减半，最终不再是热点，也不在K个key中
+     */
+    @Test
+    void testDecay() {
+        record("cache:shop:1", 100);
+        detector.decay();
+        assertTrue(detector.isHot("cache:shop:1"));
+
+        // 100 -> 50 -> 25 -> 12，低于20后不再是热点
+        detector.decay();
+        detector.decay();
+        assertTrue(detector.isHot("cache:shop:1"));
+        detector.decay();
+        assertFalse(detector.isHot("cache:shop:1"));
+
+        for (int i = 0; i < 10; i++) {
+            detector.decay();
+        }
+        assertTrue(detector.topKeys().isEmpty());
+    }
+}
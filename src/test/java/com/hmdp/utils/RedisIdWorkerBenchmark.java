@@ -0,0 +1,66 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisIdWorker生成时间戳和自增key的开销，不访问Redis。
+ * 运行main方法，GC分析器输出的gc.alloc.rate.norm即每次调用分配的字节数：
+ * before是原来的写法，after是缓存key之后的写法。
+ * <p>
+ * 参考结果（JDK 17，JMH 1.36）：before 800 B/op、316~703 ns/op；after约0 B/op、53~64 ns/op
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    private static final long BEGIN_TIMESTAMP = 1672531200L;
+
+    private final RedisIdWorker redisIdWorker = new RedisIdWorker(null, null, false, 1000L, 0.2);
+
+    @Benchmark
+    public void before(Blackhole blackhole) {
+        LocalDateTime nowTime = LocalDateTime.now();
+        long nowSecond = nowTime.toEpochSecond(ZoneOffset.UTC);
+        blackhole.consume(nowSecond - BEGIN_TIMESTAMP);
+        String dateStr = nowTime.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        blackhole.consume("icr:" + "order" + ":" + dateStr);
+    }
+
+    @Benchmark
+    public void after(Blackhole blackhole) {
+        long nowSecond = RedisIdWorker.nowSecond();
+        blackhole.consume(nowSecond - BEGIN_TIMESTAMP);
+        blackhole.consume(redisIdWorker.dayKey("order", nowSecond));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisIdWorkerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RedisIdWorkerSegmentTest {
+
+    private static final long STEP = 100L;
+
+    /**
+     * 模拟Redis中的自增key
+     */
+    private final AtomicLong counter = new AtomicLong();
+
+    private ValueOperations<String, String> ops;
+
+    private RedisIdWorker idWorker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> counter.addAndGet(invocation.getArgument(1)));
+        idWorker = new RedisIdWorker(stringRedisTemplate, null, true, STEP, 0.2);
+    }
+
+    /**
+     * 序列号在本地从号段中分配，只在号段用完（或预取）时访问Redis
+     */
+    @Test
+    void testSequentialWithinSegment() {
+        long first = idWorker.nextId("order");
+        assertEquals(1L, first & 0xFFFFFFFFL);
+        for (long i = 2; i <= 50; i++) {
+            assertEquals(i, idWorker.nextId("order") & 0xFFFFFFFFL);
+        }
+        // 还没到水位线（剩余20%），只取了一个号段
+        verify(ops, atMost(1)).increment(anyString(), anyLong());
+    }
+
+    /**
+     * 多线程跨越多个号段时ID不重复，序列号不超过已预留的范围
+     */
+    @Test
+    void testUniqueAcrossSegments() throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        int threads = 8;
+        int perThread = 5000;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    assertTrue(ids.add(idWorker.nextId("order")));
+                }
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        assertEquals(threads * perThread, ids.size());
+        long reserved = counter.get();
+        for (long id : ids) {
+            long count = id & 0xFFFFFFFFL;
+            assertTrue(count >= 1 && count <= reserved);
+        }
+    }
+}
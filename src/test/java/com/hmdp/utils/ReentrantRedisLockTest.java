@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class ReentrantRedisLockTest {
+
+    private static final String NAME = "test:reentrant";
+
+    private static final String KEY = "lock:" + NAME;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisLockWatchdog redisLockWatchdog;
+
+    @Resource
+    private LockReleaseSubscriber lockReleaseSubscriber;
+
+    @AfterEach
+    void tearDown() {
+        stringRedisTemplate.delete(KEY);
+    }
+
+    private ReentrantRedisLock newLock() {
+        return new ReentrantRedisLock(stringRedisTemplate, redisLockWatchdog, lockReleaseSubscriber, NAME);
+    }
+
+    /**
+     * 同一个线程可以重入，释放次数与加锁次数相同时才真正释放；其他线程获取失败
+     */
+    @Test
+    void testReentrant() throws Exception {
+        ReentrantRedisLock lock = newLock();
+        assertTrue(lock.tryLock(10L));
+        assertTrue(lock.tryLock(10L));
+        assertFalse(CompletableFuture.supplyAsync(() -> newLock().tryLock(10L)).get());
+
+        lock.unlock();
+        assertTrue(lock.isHeldByCurrentThread());
+        lock.unlock();
+        assertFalse(stringRedisTemplate.hasKey(KEY));
+    }
+
+    /**
+     * 持有时间超过过期时间，看门狗续期后锁仍然有效
+     */
+    @Test
+    void testRenewal() throws Exception {
+        ReentrantRedisLock lock = newLock();
+        assertTrue(lock.tryLock(0L, 1500L, TimeUnit.MILLISECONDS));
+        Thread.sleep(4000L);
+        assertTrue(lock.isHeldByCurrentThread());
+        Long ttl = stringRedisTemplate.getExpire(KEY, TimeUnit.MILLISECONDS);
+        assertTrue(ttl != null && ttl > 0);
+        lock.unlock();
+        assertFalse(stringRedisTemplate.hasKey(KEY));
+    }
+
+    /**
+     * 锁丢失（过期被删除）后看门狗不再续期，其他线程获取锁后，原持有者释放不会删除别人的锁
+     */
+    @Test
+    void testLostLock() throws Exception {
+        ReentrantRedisLock lock = newLock();
+        assertTrue(lock.tryLock(0L, 1500L, TimeUnit.MILLISECONDS));
+        // 模拟锁过期
+        stringRedisTemplate.delete(KEY);
+        // 等待看门狗发现锁已丢失
+        Thread.sleep(1500L);
+        assertFalse(stringRedisTemplate.hasKey(KEY));
+
+        CompletableFuture<Void> other = new CompletableFuture<>();
+        CompletableFuture<Boolean> locked = CompletableFuture.supplyAsync(() -> {
+            ReentrantRedisLock otherLock = newLock();
+            boolean ok = otherLock.tryLock(10L);
+            other.join();
+            otherLock.unlock();
+            return ok;
+        });
+        Thread.sleep(500L);
+        lock.unlock();
+        assertTrue(stringRedisTemplate.hasKey(KEY));
+        assertEquals(1L, stringRedisTemplate.opsForHash().size(KEY));
+        other.complete(null);
+        assertTrue(locked.get());
+    }
+}
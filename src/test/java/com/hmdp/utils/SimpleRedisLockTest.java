@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class SimpleRedisLockTest {
+
+    private static final String NAME = "test:simple";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LockReleaseSubscriber lockReleaseSubscriber;
+
+    @AfterEach
+    void tearDown() {
+        stringRedisTemplate.delete("lock:" + NAME);
+    }
+
+    /**
+     * 等待中的线程在锁释放时被通知唤醒，不需要等到锁过期
+     */
+    @Test
+    void testWaiterWokenOnRelease() throws Exception {
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, lockReleaseSubscriber, NAME);
+        assertTrue(lock.tryLock(30L));
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        CompletableFuture<Long> waited = CompletableFuture.supplyAsync(() -> {
+            SimpleRedisLock other = new SimpleRedisLock(stringRedisTemplate, lockReleaseSubscriber, NAME);
+            long start = System.nanoTime();
+            waiting.countDown();
+            try {
+                if (!other.tryLock(10L, 30L, TimeUnit.SECONDS)) {
+                    return -1L;
+                }
+                other.unlock();
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1L;
+            }
+        });
+        waiting.await();
+        Thread.sleep(500L);
+        lock.unlock();
+
+        long millis = waited.get(10L, TimeUnit.SECONDS);
+        // 锁还有约30秒才过期，能在释放后很快获取到说明是被通知唤醒的
+        assertTrue(millis >= 0 && millis < 3000L, "等待了" + millis + "毫秒");
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SnowflakeIdWorkerTest {
+
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        // 第一个worker id就能租用成功，没有上一个持有者
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+        worker = new SnowflakeIdWorker(stringRedisTemplate, 5L, 60000L);
+        ReflectionTestUtils.invokeMethod(worker, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(worker, "release");
+    }
+
+    /**
+     * 高32位时间戳，低32位 10位worker id + 22位序列号
+     */
+    @Test
+    void testDecode() {
+        long second = LocalDateTime.of(2024, 5, 1, 8, 30, 15).toEpochSecond(ZoneOffset.UTC);
+        long id = (second - RedisIdWorker.BEGIN_TIMESTAMP) << 32 | 1023L << 22 | 4194303L;
+        SnowflakeIdWorker.IdInfo info = SnowflakeIdWorker.decode(id);
+        assertEquals(LocalDateTime.of(2024, 5, 1, 8, 30, 15), info.getTime());
+        assertEquals(1023L, info.getWorkerId());
+        assertEquals(4194303L, info.getSequence());
+        assertEquals(0xFFFFFFFFL, info.getLowBits());
+
+        SnowflakeIdWorker.IdInfo first = SnowflakeIdWorker.decode((second - RedisIdWorker.BEGIN_TIMESTAMP) << 32 | 1L << 22);
+        assertEquals(1L, first.getWorkerId());
+        assertEquals(0L, first.getSequence());
+    }
+
+    /**
+     * 生成的ID带着租用的worker id，时间为当前时间
+     */
+    @Test
+    void testNextIdLayout() {
+        long before = RedisIdWorker.nowSecond();
+        long id = worker.nextId("order");
+        long after = RedisIdWorker.nowSecond();
+        SnowflakeIdWorker.IdInfo info = SnowflakeIdWorker.decode(id);
+        long second = info.getTime().toEpochSecond(ZoneOffset.UTC);
+        assertTrue(second >= before && second <= after);
+        assertEquals(((Integer) ReflectionTestUtils.getField(worker, "workerId")).longValue(), info.getWorkerId());
+        // 租用时已经从当前秒开始，同一秒内序列号逐个递增
+        SnowflakeIdWorker.IdInfo next = SnowflakeIdWorker.decode(worker.nextId("order"));
+        if (next.getTime().equals(info.getTime())) {
+            assertEquals(info.getSequence() + 1, next.getSequence());
+        } else {
+            assertEquals(0L, next.getSequence());
+        }
+    }
+
+    /**
+     * 同一秒的序列号用完后借用下一秒，ID仍然严格递增
+     */
+    @Test
+    void testSequenceOverflowBorrowsNextSecond() {
+        long last = worker.nextId("order");
+        long firstSecond = SnowflakeIdWorker.decode(last).getTime().toEpochSecond(ZoneOffset.UTC);
+        int n = (1 << 22) + 10;
+        for (int i = 0; i < n; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+        long lastSecond = SnowflakeIdWorker.decode(last).getTime().toEpochSecond(ZoneOffset.UTC);
+        assertTrue(lastSecond > firstSecond);
+        // 借用不超过maxBorrowSeconds
+        assertTrue(lastSecond <= RedisIdWorker.nowSecond() + 5);
+    }
+}